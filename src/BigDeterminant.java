@@ -0,0 +1,58 @@
+import java.math.BigInteger;
+
+/**
+ * The fallback for matrices whose entries outgrow an int in the exact
+ * engine. Calculates the determinant with BigInteger by fraction-free
+ * (Bareiss) elimination, in which every division is exact, so the
+ * result is correct however large the intermediate values get. Far
+ * slower than the exact engine, so it only runs after an overflow.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class BigDeterminant {
+
+  /**
+   * Calculates the determinant of a matrix.
+   * @param entries: The entries of the matrix, row by row
+   * @param n: The order of the matrix
+   * @return: The determinant of the matrix
+   */
+  static BigInteger determinant(int[] entries, int n) {
+    BigInteger[][] a = new BigInteger[n][n];
+    for (int row = 0; row < n; row++) {
+      for (int col = 0; col < n; col++) {
+        a[row][col] = BigInteger.valueOf(entries[row * n + col]);
+      }
+    }
+    boolean negate = false;
+    BigInteger prevPivot = BigInteger.ONE;
+    for (int k = 0; k + 1 < n; k++) {
+      if (a[k][k].signum() == 0) {
+        int pivot = k + 1;
+        while (pivot < n && a[pivot][k].signum() == 0) {
+          pivot++;
+        }
+        if (pivot == n) {
+          return BigInteger.ZERO;
+        }
+        BigInteger[] temp = a[k];
+        a[k] = a[pivot];
+        a[pivot] = temp;
+        negate = !negate;
+      }
+      for (int row = k + 1; row < n; row++) {
+        for (int col = k + 1; col < n; col++) {
+          a[row][col] = a[row][col].multiply(a[k][k])
+                  .subtract(a[row][k].multiply(a[k][col]))
+                  .divide(prevPivot);
+        }
+      }
+      prevPivot = a[k][k];
+    }
+    if (n == 0) {
+      return BigInteger.ONE;
+    }
+    BigInteger det = a[n - 1][n - 1];
+    return negate ? det.negate() : det;
+  }
+}
@@ -0,0 +1,125 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * How far a checkpointed run got: the byte offset in the input at
+ * which the next matrix starts, the number of matrices (segments, as
+ * found by MatrixIndex) processed before it, and the length of the
+ * output written for them. Kept in a file next to the output file,
+ * tagged with the input's length and modification time so that a run
+ * is never resumed against a different input, and with the settings
+ * the determinants were calculated with so that it is never resumed
+ * with different ones.
+ *
+ * The file is written to a temporary file first and then moved over
+ * the old one, so a crash leaves either the old or the new checkpoint
+ * behind, never a torn one.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class Checkpoint {
+
+  private static final int MAGIC = 0x4c334332; // "L3C2"
+  private static final String SUFFIX = ".ckpt";
+
+  long inputOffset;
+  long matrices;
+  long outputPosition;
+  private long inputLength;
+  private long inputModified;
+  private String settings;
+
+  /**
+   * Constructor for the Checkpoint. Creates the checkpoint at the
+   * start of the given input file.
+   * @param inPath: The path of the input file
+   * @param settings: The settings the determinants are calculated
+   *                with, as given by Lab3
+   */
+  Checkpoint(String inPath, String settings) {
+    File input = new File(inPath);
+    inputLength = input.length();
+    inputModified = input.lastModified();
+    this.settings = settings;
+  }
+
+  /**
+   * Loads the checkpoint kept next to the output file.
+   * @param outPath: The path of the output file
+   * @param inPath: The path of the input file
+   * @param settings: The settings the determinants are calculated
+   *                with, as given by Lab3
+   * @return: The checkpoint, or null if there is none
+   * @throws IOException if the checkpoint could not be read or was
+   * written for a different input file or with different settings
+   */
+  static Checkpoint load(String outPath, String inPath, String settings)
+          throws IOException {
+    File saved = new File(outPath + SUFFIX);
+    if (!saved.isFile()) {
+      return null;
+    }
+    Checkpoint checkpoint = new Checkpoint(inPath, settings);
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(saved)))) {
+      if (in.readInt() != MAGIC || in.readLong() != checkpoint.inputLength ||
+              in.readLong() != checkpoint.inputModified) {
+        throw new IOException("Checkpoint " + saved +
+                " does not belong to " + inPath);
+      }
+      String savedSettings = in.readUTF();
+      if (!savedSettings.equals(settings)) {
+        throw new IOException("Checkpoint " + saved +
+                " was written with other settings:\n" + savedSettings +
+                "\nResume with the same options, or start afresh");
+      }
+      checkpoint.inputOffset = in.readLong();
+      checkpoint.matrices = in.readLong();
+      checkpoint.outputPosition = in.readLong();
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Writes the checkpoint next to the output file, replacing the
+   * previous one atomically. The output up to outputPosition must
+   * already be on disk.
+   * @param outPath: The path of the output file
+   * @throws IOException if the checkpoint could not be written
+   */
+  void save(String outPath) throws IOException {
+    File saved = new File(outPath + SUFFIX);
+    File temp = new File(outPath + SUFFIX + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(temp);
+         DataOutputStream out = new DataOutputStream(fos)) {
+      out.writeInt(MAGIC);
+      out.writeLong(inputLength);
+      out.writeLong(inputModified);
+      out.writeUTF(settings);
+      out.writeLong(inputOffset);
+      out.writeLong(matrices);
+      out.writeLong(outputPosition);
+      out.flush();
+      fos.getFD().sync();
+    }
+    Files.move(temp.toPath(), saved.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Removes the checkpoint of a finished run, or the stale one of an
+   * earlier run when a run starts afresh.
+   * @param outPath: The path of the output file
+   */
+  static void delete(String outPath) {
+    new File(outPath + SUFFIX).delete();
+  }
+}
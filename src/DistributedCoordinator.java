@@ -0,0 +1,451 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The coordinator side of a distributed run. Splits the input file
+ * into chunks at matrix boundaries with MatrixIndex, hands the chunks
+ * out to worker JVMs over sockets and writes their outputs in input
+ * order, so the output file is identical to that of a sequential run.
+ * The trace the workers send back with every chunk is printed in
+ * input order as well.
+ *
+ * The coordinator starts the given number of workers on the local
+ * machine, and any DistributedWorker started elsewhere with the host
+ * and port of the coordinator joins in as well. If a worker dies, the
+ * chunk it was working on is handed to another worker, and a local
+ * worker is started again in its place. A worker that falls silent
+ * for longer than the timeout counts as dead as well.
+ *
+ * Only workers that present the shared token of the run and calculate
+ * the determinants with the same settings as the coordinator are
+ * served, so the output never depends on which worker parsed a chunk.
+ * The metrics every worker collects are added up in the coordinator's.
+ * Unless remote workers are asked for, the coordinator only listens
+ * on the loopback interface. At most WINDOW chunks past the first one
+ * not yet written are handed out, so that one slow chunk cannot make
+ * the coordinator hold the output of all the others.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class DistributedCoordinator {
+
+  private static final long CHUNK_BYTES = 1 << 20;
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long POLL_MILLIS = 200;
+  private static final long SHUTDOWN_MILLIS = 5000;
+  private static final int WINDOW = 16;
+
+  private int localWorkers;
+  private int port;
+  private List<String> workerOptions;
+  private boolean saveIndex;
+  private boolean remote;
+  private String token;
+  private String settings;
+  private RunMetrics metrics;
+
+  private MatrixIndex index;
+  private int[] chunks;
+  private FileChannel channel;
+  private PriorityQueue<Integer> pending; // guarded by this
+  private int written; // chunks written to the output so far
+  private String[] results;
+  private String[] traces;
+  private int[] attempts;
+  private int restartsLeft;
+  private int localAlive;
+  private int connections;
+  private boolean finished;
+  private String failure;
+
+  /**
+   * Constructor for the DistributedCoordinator.
+   * @param localWorkers: The number of worker JVMs to start on
+   *                    this machine
+   * @param port: The port to listen on for workers, 0 for any
+   * @param workerOptions: The command-line options every local worker
+   *                     is started with, so that it calculates the
+   *                     determinants the same way the coordinator would
+   * @param saveIndex: Whether the boundary index should be saved
+   *                 next to the input file
+   * @param remote: Whether to listen on every interface for workers
+   *              on other machines, rather than on loopback only
+   * @param settings: The settings the determinants are calculated
+   *                with, as given by Lab3, which every worker must
+   *                share
+   * @param metrics: The metrics the workers' metrics are added to
+   */
+  DistributedCoordinator(int localWorkers, int port,
+                         List<String> workerOptions, boolean saveIndex,
+                         boolean remote, String settings,
+                         RunMetrics metrics) {
+    this.localWorkers = localWorkers;
+    this.port = port;
+    this.workerOptions = workerOptions;
+    this.saveIndex = saveIndex;
+    this.remote = remote;
+    this.settings = settings;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Distributes every matrix of the input file to the workers and
+   * writes the output, in input order, to out.
+   * @param inPath: The path of the input file
+   * @param out: The output BufferedWriter which the output
+   *           will be written to.
+   * @throws IOException if the input could not be read, the output
+   * could not be written or the workers could not finish the work
+   */
+  void run(String inPath, BufferedWriter out) throws IOException {
+    index = MatrixIndex.loadOrScan(inPath, saveIndex);
+    chunks = index.chunk(CHUNK_BYTES);
+    int count = chunks.length - 1;
+    pending = new PriorityQueue<>();
+    for (int c = 0; c < count; c++) {
+      pending.add(c);
+    }
+    results = new String[count];
+    traces = new String[count];
+    attempts = new int[count];
+    restartsLeft = localWorkers * MAX_ATTEMPTS;
+
+    token = System.getenv(DistributedWorker.TOKEN_VARIABLE);
+    boolean tokenGiven = token != null && !token.isEmpty();
+    if (!tokenGiven) {
+      byte[] random = new byte[16];
+      new SecureRandom().nextBytes(random);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : random) {
+        hex.append(String.format("%02x", b));
+      }
+      token = hex.toString();
+    }
+
+    try (FileInputStream fis = new FileInputStream(inPath);
+         ServerSocket server = remote ? new ServerSocket(port) :
+                 new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+      channel = fis.getChannel();
+      System.out.println("Coordinator listening on " +
+              (remote ? "port " : "loopback port ") + server.getLocalPort());
+      if (remote) {
+        System.out.println("Workers must run: " +
+                (tokenGiven ? "" : DistributedWorker.TOKEN_VARIABLE + "=" +
+                token + " ") + "java Lab3 " +
+                String.join(" ", workerOptions) +
+                (workerOptions.isEmpty() ? "" : " ") +
+                "--worker=<this host>:" + server.getLocalPort());
+      }
+      Thread acceptor = new Thread(() -> acceptWorkers(server));
+      acceptor.setDaemon(true);
+      acceptor.start();
+      for (int w = 0; w < localWorkers; w++) {
+        synchronized (this) {
+          localAlive++;
+        }
+        startLocalWorker(server.getLocalPort());
+      }
+      for (int c = 0; c < count; c++) {
+        out.write(awaitResult(c));
+      }
+      finish();
+    } finally {
+      synchronized (this) {
+        finished = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Ends the run and gives the workers a moment to be told to stop,
+   * so that they exit cleanly rather than on a broken connection.
+   */
+  private synchronized void finish() {
+    finished = true;
+    notifyAll();
+    long deadline = System.currentTimeMillis() + SHUTDOWN_MILLIS;
+    long left;
+    while (connections > 0 &&
+            (left = deadline - System.currentTimeMillis()) > 0) {
+      try {
+        wait(left);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Waits until the given chunk has been parsed, and prints its trace.
+   * @param c: The index of the chunk
+   * @return: The output of the chunk
+   * @throws IOException if the chunk can no longer be parsed
+   */
+  private synchronized String awaitResult(int c) throws IOException {
+    while (results[c] == null) {
+      if (failure != null) {
+        throw new IOException(failure);
+      }
+      if (localWorkers > 0 && localAlive == 0 && connections == 0) {
+        throw new IOException("All workers died");
+      }
+      try {
+        wait(POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for workers", e);
+      }
+    }
+    String result = results[c];
+    printTrace(traces[c]);
+    results[c] = null; // already written, free the memory
+    traces[c] = null;
+    written = c + 1;
+    notifyAll(); // the window has moved on
+    return result;
+  }
+
+  /**
+   * Prints a trace to stdout line by line, so that its lines stay
+   * whole among those the local workers print to the same stdout.
+   * @param trace: The trace, a line separator after every line
+   */
+  private static void printTrace(String trace) {
+    int from = 0;
+    int end;
+    while ((end = trace.indexOf('\n', from)) >= 0) {
+      System.out.println(trace.substring(from, end));
+      from = end + 1;
+    }
+  }
+
+  /**
+   * Accepts workers until the server socket is closed, serving each
+   * on its own thread.
+   * @param server: The socket the workers connect to
+   */
+  private void acceptWorkers(ServerSocket server) {
+    try {
+      while (true) {
+        Socket socket = server.accept();
+        synchronized (this) {
+          connections++;
+        }
+        Thread serve = new Thread(() -> serveWorker(socket));
+        serve.setDaemon(true);
+        serve.start();
+      }
+    } catch (IOException e) {
+      // The server socket was closed, the run is over
+    }
+  }
+
+  /**
+   * Hands chunks to one worker until there is no work left or the
+   * worker dies. A chunk the worker did not return is put back at
+   * the front of the queue for another worker.
+   * @param socket: The connection to the worker
+   */
+  private void serveWorker(Socket socket) {
+    Integer chunk = null;
+    try (Socket s = socket) {
+      s.setSoTimeout(DistributedWorker.TIMEOUT_MILLIS);
+      DataInputStream in = new DataInputStream(
+              new BufferedInputStream(s.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(s.getOutputStream()));
+      String presented = DistributedWorker.readText(in,
+              DistributedWorker.MAX_TOKEN_BYTES);
+      if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+              presented.getBytes(StandardCharsets.UTF_8))) {
+        System.err.println("Rejected a worker with a wrong token from " +
+                s.getRemoteSocketAddress());
+        return;
+      }
+      String workerSettings = DistributedWorker.readText(in);
+      if (!workerSettings.equals(settings)) {
+        System.err.println("Rejected a worker with other settings from " +
+                s.getRemoteSocketAddress() + ":\n" + workerSettings);
+        out.writeInt(DistributedWorker.REJECTED);
+        DistributedWorker.writeText(out, "The coordinator calculates " +
+                "with other settings:\n" + settings);
+        out.flush();
+        return;
+      }
+      long lastSent = System.currentTimeMillis();
+      while (!isFinished()) {
+        chunk = takeChunk();
+        if (chunk == null) {
+          // Idle, let the worker know the coordinator is still there
+          long now = System.currentTimeMillis();
+          if (now - lastSent >= DistributedWorker.HEARTBEAT_MILLIS) {
+            out.writeInt(DistributedWorker.HEARTBEAT);
+            out.flush();
+            lastSent = now;
+          }
+          continue;
+        }
+        out.writeInt(chunk);
+        out.writeLong(chunks[chunk]);
+        DistributedWorker.writeText(out, index.read(channel,
+                chunks[chunk], chunks[chunk + 1]));
+        out.flush();
+        int id;
+        while ((id = in.readInt()) == DistributedWorker.HEARTBEAT) {
+          // Still working on it
+        }
+        if (id != chunk) {
+          throw new IOException("Worker answered chunk " + id +
+                  " instead of " + chunk);
+        }
+        String output = DistributedWorker.readText(in);
+        String trace = DistributedWorker.readText(in);
+        RunMetrics chunkMetrics = RunMetrics.read(in);
+        synchronized (this) {
+          metrics.add(chunkMetrics);
+          traces[chunk] = trace;
+          results[chunk] = output;
+          notifyAll();
+        }
+        chunk = null;
+        lastSent = System.currentTimeMillis();
+      }
+      out.writeInt(DistributedWorker.STOP);
+      out.flush();
+    } catch (IOException e) {
+      System.err.println("Lost a worker: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        connections--;
+        if (chunk != null) {
+          retry(chunk);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Puts a chunk whose worker died back in the queue, unless it has
+   * already brought down too many workers.
+   * @param chunk: The index of the chunk
+   */
+  private synchronized void retry(int chunk) {
+    attempts[chunk]++;
+    if (attempts[chunk] >= MAX_ATTEMPTS) {
+      failure = "Chunk " + chunk + " failed on " + MAX_ATTEMPTS +
+              " workers";
+    } else {
+      pending.add(chunk);
+    }
+  }
+
+  /**
+   * Takes the next chunk to hand out, waiting a little if there is
+   * none within the window.
+   * @return: The index of the chunk, or null if there is none yet
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private synchronized Integer takeChunk() throws InterruptedException {
+    if (!isFinished() && !inWindow()) {
+      wait(POLL_MILLIS);
+    }
+    return !isFinished() && inWindow() ? pending.poll() : null;
+  }
+
+  /**
+   * @return: True if the lowest pending chunk is within the window of
+   * chunks that may be handed out.
+   */
+  private synchronized boolean inWindow() {
+    Integer next = pending.peek();
+    return next != null && next < written + WINDOW;
+  }
+
+  /**
+   * @return: True once every chunk has been written, or the run
+   * was given up.
+   */
+  private synchronized boolean isFinished() {
+    return finished || failure != null;
+  }
+
+  /**
+   * Starts a worker JVM on this machine that connects back to the
+   * coordinator, with the same class path and determinant settings.
+   * When it exits before the run is over, another one is started
+   * in its place while the restart budget lasts. The caller counts
+   * the worker as alive before calling.
+   * @param listenPort: The port the coordinator listens on
+   * @throws IOException if the JVM could not be started
+   */
+  private void startLocalWorker(int listenPort) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" +
+            File.separator + "java");
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("Lab3");
+    command.addAll(workerOptions);
+    command.add("--worker=" +
+            InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+            listenPort);
+    ProcessBuilder builder = new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+            .redirectError(ProcessBuilder.Redirect.INHERIT);
+    // The environment keeps the token off the process list
+    builder.environment().put(DistributedWorker.TOKEN_VARIABLE, token);
+    Process process = builder.start();
+    Thread monitor = new Thread(() -> {
+      try {
+        process.waitFor();
+      } catch (InterruptedException e) {
+        process.destroy();
+      }
+      boolean restart;
+      synchronized (this) {
+        restart = !isFinished() && restartsLeft > 0;
+        if (restart) {
+          restartsLeft--; // the new worker takes over this one's place
+        } else {
+          localAlive--;
+        }
+        notifyAll();
+      }
+      if (restart) {
+        System.err.println("Worker exited, starting another one");
+        try {
+          startLocalWorker(listenPort);
+        } catch (IOException e) {
+          System.err.println("Could not restart worker: " + e);
+          synchronized (this) {
+            localAlive--;
+            notifyAll();
+          }
+        }
+      }
+    });
+    monitor.setDaemon(true);
+    monitor.start();
+  }
+}
@@ -0,0 +1,201 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The worker side of a distributed run. Connects to a
+ * DistributedCoordinator, which may run on the same machine or on
+ * another node, and parses the chunks of input it is sent until the
+ * coordinator tells it to stop.
+ *
+ * The worker first sends the shared token of the run and then its
+ * settings, as given by Lab3, which the coordinator both checks before
+ * handing out any work: a worker that calculates the determinants
+ * differently from the coordinator is told so with a chunk id of -3
+ * and the reason, and turned away. After that every message starts
+ * with a chunk id. The coordinator follows it with the number of
+ * matrices in the input before the chunk and the input of the chunk,
+ * the worker with the output of the chunk, its trace and the metrics
+ * collected while parsing it, each text as its length and UTF-8 bytes.
+ * A chunk id of -1 from
+ * the coordinator means there is no more work. A chunk id of -2, with
+ * no text, is a heartbeat: the worker sends one every few seconds
+ * while it parses a chunk, and the coordinator while it has no work
+ * to hand out, so that either side can tell a silent peer from a busy
+ * one and give up on it after a timeout.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class DistributedWorker {
+
+  static final int STOP = -1;
+  static final int HEARTBEAT = -2;
+  static final int REJECTED = -3;
+  static final int HEARTBEAT_MILLIS = 5000;
+  static final int TIMEOUT_MILLIS = 30000;
+  static final int MAX_TOKEN_BYTES = 256;
+  static final String TOKEN_VARIABLE = "LAB3_TOKEN";
+  private static final int CONNECT_ATTEMPTS = 20;
+  private static final long CONNECT_RETRY_MILLIS = 250;
+
+  private Lab3 lab;
+
+  /**
+   * Constructor for the DistributedWorker.
+   * @param lab: The Lab3 whose settings every chunk is parsed with
+   */
+  DistributedWorker(Lab3 lab) {
+    this.lab = lab;
+  }
+
+  /**
+   * Connects to the coordinator and serves chunks until told to stop.
+   * @param host: The host the coordinator runs on
+   * @param port: The port the coordinator listens on
+   * @param token: The shared token of the run
+   * @throws IOException if the coordinator could not be reached, the
+   * connection was lost, the coordinator fell silent or turned the
+   * worker away
+   */
+  void run(String host, int port, String token) throws IOException {
+    try (Socket socket = connect(host, port)) {
+      socket.setSoTimeout(TIMEOUT_MILLIS);
+      DataInputStream in = new DataInputStream(
+              new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream()));
+      writeText(out, token);
+      writeText(out, lab.settings());
+      out.flush();
+      int chunk;
+      while ((chunk = in.readInt()) != STOP) {
+        if (chunk == HEARTBEAT) {
+          continue;
+        }
+        if (chunk == REJECTED) {
+          throw new IOException(readText(in));
+        }
+        long firstMatrix = in.readLong();
+        String text = readText(in);
+        StringBuilder trace = new StringBuilder();
+        Thread beat = startHeartbeat(out);
+        String output;
+        try {
+          output = lab.parseSegment(text, firstMatrix, trace);
+        } finally {
+          beat.interrupt();
+          try {
+            beat.join();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        synchronized (out) {
+          out.writeInt(chunk);
+          writeText(out, output);
+          writeText(out, trace.toString());
+          lab.takeMetrics().write(out);
+          out.flush();
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts a thread that sends heartbeats to the coordinator until it
+   * is interrupted.
+   * @param out: The stream to the coordinator
+   * @return: The started thread
+   */
+  private static Thread startHeartbeat(DataOutputStream out) {
+    Thread beat = new Thread(() -> {
+      try {
+        while (true) {
+          Thread.sleep(HEARTBEAT_MILLIS);
+          synchronized (out) {
+            out.writeInt(HEARTBEAT);
+            out.flush();
+          }
+        }
+      } catch (InterruptedException | IOException e) {
+        // The chunk is done, or the connection is gone
+      }
+    });
+    beat.setDaemon(true);
+    beat.start();
+    return beat;
+  }
+
+  /**
+   * Connects to the coordinator, retrying for a while in case the
+   * worker was started before the coordinator.
+   * @param host: The host the coordinator runs on
+   * @param port: The port the coordinator listens on
+   * @return: The connected Socket
+   * @throws IOException if no connection could be made
+   */
+  private static Socket connect(String host, int port) throws IOException {
+    IOException last = null;
+    for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+      try {
+        return new Socket(host, port);
+      } catch (IOException e) {
+        last = e;
+        try {
+          Thread.sleep(CONNECT_RETRY_MILLIS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    throw last;
+  }
+
+  /**
+   * Reads a length-prefixed UTF-8 text.
+   * @param in: The stream to read from
+   * @return: The text
+   * @throws IOException if the stream could not be read
+   */
+  static String readText(DataInputStream in) throws IOException {
+    return readText(in, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Reads a length-prefixed UTF-8 text of bounded length, for texts
+   * that arrive before the peer has proven who it is.
+   * @param in: The stream to read from
+   * @param maxBytes: The largest length accepted
+   * @return: The text
+   * @throws IOException if the stream could not be read or the
+   * length is out of range
+   */
+  static String readText(DataInputStream in, int maxBytes)
+          throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > maxBytes) {
+      throw new IOException("Bad text length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a length-prefixed UTF-8 text.
+   * @param out: The stream to write to
+   * @param text: The text to write
+   * @throws IOException if the stream could not be written
+   */
+  static void writeText(DataOutputStream out, String text)
+          throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,308 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+/**
+ * Measures the determinant engines on this host and derives the
+ * thresholds of an EngineProfile from the measurements: from which
+ * entry growth a pivot strategy other than first-nonzero pays off,
+ * from which order the floating engine beats the exact one, and up to
+ * which density the modular pre-filter saves more than it costs.
+ *
+ * Every measurement runs the same fixed-seed sample of random matrices
+ * through the competing engines and keeps the median of several
+ * rounds, after a full warm-up pass, so that JIT compilation and
+ * garbage collection do not decide the outcome. Only matrices the
+ * exact engine solves without overflowing an int are timed; sizes at
+ * which too many of them overflow are outside its range and are not
+ * measured at all. A challenger has to beat the default by a margin,
+ * so that noise between two close engines does not flip the profile
+ * from one run to the next.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class EngineCalibrator {
+
+  private static final long SEED = 20161019L;
+  private static final int SAMPLES = 500;
+  private static final int ROUNDS = 7;
+  private static final int WARMUP_PASSES = 1;
+  // Share of random matrices allowed to overflow before a size counts
+  // as outside the exact engine's range
+  private static final double MAX_OVERFLOW_SHARE = 0.1;
+  // A challenger must take at most this share of the default's time
+  private static final double MARGIN = 0.9;
+  private static final int PIVOT_MIN_ORDER = 3;
+  private static final int PIVOT_MAX_ORDER = 6;
+  private static final int PIVOT_MIN_BITS = 2;
+  private static final int PIVOT_MAX_BITS = 8;
+  private static final int FLOATING_MAX_ORDER = 12;
+  private static final int FILTER_ORDER = 6;
+  private static final int ENTRY_BITS = 2;
+
+  private Random random;
+  private MatrixList ml;
+
+  /**
+   * Constructor for the EngineCalibrator.
+   */
+  EngineCalibrator() {
+    ml = new MatrixList(1);
+  }
+
+  /**
+   * Runs every measurement, the first passes only to warm up. The
+   * engines' own output to stdout is suppressed meanwhile.
+   * @return: The profile measured on this host
+   */
+  EngineProfile calibrate() {
+    EngineProfile profile = new EngineProfile();
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        // Discard
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        // Discard
+      }
+    }));
+    try {
+      for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+        random = new Random(SEED); // the same sample on every pass
+        profile = new EngineProfile();
+        calibratePivot(profile);
+        calibrateFloating(profile);
+        calibrateFilter(profile);
+      }
+    } finally {
+      System.setOut(stdout);
+    }
+    return profile;
+  }
+
+  /**
+   * Times every pivot strategy for a range of orders and entry sizes.
+   * The growth threshold is the lowest growth from which, up to the
+   * largest growth measured, some other strategy always beats
+   * first-nonzero by the margin; the fastest of those over that range
+   * becomes the strategy for high growth.
+   * @param profile: The profile to set the pivot thresholds of
+   */
+  private void calibratePivot(EngineProfile profile) {
+    int maxGrowth = PIVOT_MAX_ORDER * PIVOT_MAX_BITS;
+    // For every growth: whether an alternative won, and its times
+    boolean[] measured = new boolean[maxGrowth + 1];
+    boolean[] alternativeWins = new boolean[maxGrowth + 1];
+    long[][] nanos = new long[maxGrowth + 1][PivotStrategy.values().length];
+    for (int n = PIVOT_MIN_ORDER; n <= PIVOT_MAX_ORDER; n++) {
+      for (int bits = PIVOT_MIN_BITS; bits <= PIVOT_MAX_BITS; bits++) {
+        int growth = n * bits;
+        int[][] sample = sample(n, bits, 1.0);
+        if (sample == null) {
+          continue; // outside the exact engine's range
+        }
+        long first = 0;
+        long bestOther = Long.MAX_VALUE;
+        for (PivotStrategy strategy : PivotStrategy.values()) {
+          long t = time(sample, n, exact(strategy));
+          nanos[growth][strategy.ordinal()] += t;
+          if (strategy == PivotStrategy.FIRST_NONZERO) {
+            first = t;
+          } else if (t < bestOther) {
+            bestOther = t;
+          }
+        }
+        // Several orders can share a growth, all of them must agree
+        alternativeWins[growth] = bestOther < first * MARGIN &&
+                (!measured[growth] || alternativeWins[growth]);
+        measured[growth] = true;
+      }
+    }
+    int threshold = Integer.MAX_VALUE;
+    for (int g = maxGrowth; g >= 0; g--) {
+      if (measured[g]) {
+        if (!alternativeWins[g]) {
+          break;
+        }
+        threshold = g;
+      }
+    }
+    profile.pivotGrowthBits = threshold;
+    if (threshold == Integer.MAX_VALUE) {
+      profile.highGrowthPivot = PivotStrategy.FIRST_NONZERO;
+      return;
+    }
+    PivotStrategy best = null;
+    long bestNanos = Long.MAX_VALUE;
+    for (PivotStrategy strategy : PivotStrategy.values()) {
+      if (strategy == PivotStrategy.FIRST_NONZERO) {
+        continue;
+      }
+      long total = 0;
+      for (int g = threshold; g <= maxGrowth; g++) {
+        total += nanos[g][strategy.ordinal()];
+      }
+      if (total < bestNanos) {
+        bestNanos = total;
+        best = strategy;
+      }
+    }
+    profile.highGrowthPivot = best;
+  }
+
+  /**
+   * Times the floating engine against the exact one for growing
+   * orders, as far as the exact engine reaches. The minimum order is
+   * the lowest order from which the floating engine is faster by the
+   * margin up to the largest order measured.
+   * @param profile: The profile to set the floating threshold of
+   */
+  private void calibrateFloating(EngineProfile profile) {
+    FloatingDeterminant floating = new FloatingDeterminant();
+    int maxOrder = 1;
+    while (maxOrder < FLOATING_MAX_ORDER &&
+            sample(maxOrder + 1, ENTRY_BITS, 1.0) != null) {
+      maxOrder++;
+    }
+    int minOrder = Integer.MAX_VALUE;
+    for (int n = maxOrder; n >= 2; n--) {
+      int[][] sample = sample(n, ENTRY_BITS, 1.0);
+      long exactNanos = time(sample, n, exact(PivotStrategy.FIRST_NONZERO));
+      long floatingNanos = time(sample, n, floating::determinant);
+      if (floatingNanos >= exactNanos * MARGIN) {
+        break;
+      }
+      minOrder = n;
+    }
+    profile.floatingMinOrder = minOrder;
+  }
+
+  /**
+   * Times the pre-filter in front of the exact engine against the
+   * exact engine alone for growing densities. Sparse matrices are
+   * often singular, which the filter proves cheaply; dense ones rarely
+   * are, and then the filter is pure overhead. The maximum density is
+   * the highest density up to which the filter always pays off by the
+   * margin, 0 if it never does.
+   * @param profile: The profile to set the filter threshold of
+   */
+  private void calibrateFilter(EngineProfile profile) {
+    ModularFilter filter = new ModularFilter(ModularFilter.randomPrimes(1),
+            new RunMetrics());
+    ToIntFunction<MatrixList> exact = exact(PivotStrategy.FIRST_NONZERO);
+    ToIntFunction<MatrixList> filtered = m ->
+            filter.confirmsSingular(m) ? 0 : exact.applyAsInt(m);
+    double maxDensity = 0.0;
+    for (int tenths = 1; tenths <= 10; tenths++) {
+      double density = tenths / 10.0;
+      int[][] sample = sample(FILTER_ORDER, ENTRY_BITS, density);
+      if (sample == null || time(sample, FILTER_ORDER, filtered) >=
+              time(sample, FILTER_ORDER, exact) * MARGIN) {
+        break;
+      }
+      maxDensity = density;
+    }
+    profile.filterMaxDensity = maxDensity;
+  }
+
+  /**
+   * @param strategy: The pivot strategy to eliminate with
+   * @return: The exact engine with the given pivot strategy
+   */
+  private static ToIntFunction<MatrixList> exact(PivotStrategy strategy) {
+    return m -> {
+      m.setPivotStrategy(strategy);
+      return m.calculateDeterminant();
+    };
+  }
+
+  /**
+   * Generates random matrices that the exact engine solves with every
+   * pivot strategy without overflowing an int.
+   * @param n: The order of the matrices
+   * @param bits: The largest bit length of an entry's magnitude
+   * @param density: The probability of an entry being non-zero
+   * @return: The matrices, each with its entries row by row, or null
+   * if too many random matrices of this size overflow
+   */
+  private int[][] sample(int n, int bits, double density) {
+    int[][] sample = new int[SAMPLES][];
+    int maxOverflows = (int) (SAMPLES * MAX_OVERFLOW_SHARE);
+    int overflows = 0;
+    int count = 0;
+    while (count < SAMPLES) {
+      int[] entries = new int[n * n];
+      for (int e = 0; e < entries.length; e++) {
+        if (random.nextDouble() < density) {
+          int x = 1 + random.nextInt((1 << bits) - 1);
+          entries[e] = random.nextBoolean() ? x : -x;
+        }
+      }
+      if (overflowsExact(entries, n)) {
+        if (++overflows > maxOverflows) {
+          return null;
+        }
+      } else {
+        sample[count++] = entries;
+      }
+    }
+    return sample;
+  }
+
+  /**
+   * @param entries: The entries of a matrix, row by row
+   * @param n: The order of the matrix
+   * @return: True if the exact engine overflows an int on the matrix
+   * with any pivot strategy
+   */
+  private boolean overflowsExact(int[] entries, int n) {
+    for (PivotStrategy strategy : PivotStrategy.values()) {
+      load(entries, n);
+      try {
+        exact(strategy).applyAsInt(ml);
+      } catch (ArithmeticException e) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds a matrix afresh in the MatrixList.
+   * @param entries: The entries of the matrix, row by row
+   * @param n: The order of the matrix
+   */
+  private void load(int[] entries, int n) {
+    ml.reset(n);
+    for (int e = 0; e < entries.length; e++) {
+      ml.add(entries[e], e / n, e % n);
+    }
+  }
+
+  /**
+   * Times an engine over a sample, building every matrix afresh since
+   * the engines reduce it in place.
+   * @param sample: The matrices, as given by sample
+   * @param n: The order of the matrices
+   * @param engine: The engine to time
+   * @return: The median of the rounds, in nanoseconds
+   */
+  private long time(int[][] sample, int n, ToIntFunction<MatrixList> engine) {
+    long[] rounds = new long[ROUNDS];
+    for (int round = 0; round < ROUNDS; round++) {
+      long startTime = System.nanoTime();
+      for (int[] entries : sample) {
+        load(entries, n);
+        engine.applyAsInt(ml);
+      }
+      rounds[round] = System.nanoTime() - startTime;
+    }
+    Arrays.sort(rounds);
+    return rounds[ROUNDS / 2];
+  }
+}
@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The thresholds EngineSelector dispatches on. They are measured once
+ * per host by EngineCalibrator and kept in a properties file, by
+ * default .lab3-profile.properties in the user's home directory, and
+ * only used when a run is pointed at it with --profile. The defaults
+ * keep the behaviour of a run without the selector: first-nonzero
+ * pivoting, the pre-filter only if asked for and the floating engine
+ * only from order 8 on.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class EngineProfile {
+
+  static final String DEFAULT_PATH = System.getProperty("user.home") +
+          File.separator + ".lab3-profile.properties";
+
+  private static final String FILTER_MAX_DENSITY = "filter.maxDensity";
+  private static final String PIVOT_GROWTH_BITS = "pivot.growthBits";
+  private static final String PIVOT_HIGH_GROWTH = "pivot.highGrowth";
+  private static final String FLOATING_MIN_ORDER = "floating.minOrder";
+
+  double filterMaxDensity;
+  int pivotGrowthBits;
+  PivotStrategy highGrowthPivot;
+  int floatingMinOrder;
+
+  /**
+   * Constructor for the EngineProfile. Creates a profile holding
+   * the defaults.
+   */
+  EngineProfile() {
+    filterMaxDensity = 0.0; // 0 --> only if asked for
+    pivotGrowthBits = Integer.MAX_VALUE;
+    highGrowthPivot = PivotStrategy.FIRST_NONZERO;
+    floatingMinOrder = 8;
+  }
+
+  /**
+   * Loads the profile from the given file. Missing or malformed
+   * values keep their defaults; a missing file gives the defaults.
+   * @param path: The path of the profile
+   * @return: The profile
+   */
+  static EngineProfile load(String path) {
+    EngineProfile profile = new EngineProfile();
+    File file = new File(path);
+    if (!file.isFile()) {
+      return profile;
+    }
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    } catch (IOException e) {
+      System.err.println("Could not read profile " + path +
+              ", using defaults");
+      return profile;
+    }
+    try {
+      profile.filterMaxDensity = Double.parseDouble(props.getProperty(
+              FILTER_MAX_DENSITY, "" + profile.filterMaxDensity));
+      profile.pivotGrowthBits = Integer.parseInt(props.getProperty(
+              PIVOT_GROWTH_BITS, "" + profile.pivotGrowthBits));
+      profile.floatingMinOrder = Integer.parseInt(props.getProperty(
+              FLOATING_MIN_ORDER, "" + profile.floatingMinOrder));
+    } catch (NumberFormatException e) {
+      System.err.println("Malformed value in profile " + path);
+    }
+    PivotStrategy strategy = PivotStrategy.fromOptionName(
+            props.getProperty(PIVOT_HIGH_GROWTH, ""));
+    if (strategy != null) {
+      profile.highGrowthPivot = strategy;
+    }
+    return profile;
+  }
+
+  /**
+   * Saves the profile to the given file.
+   * @param path: The path of the profile
+   * @throws IOException if the file could not be written
+   */
+  void save(String path) throws IOException {
+    Properties props = new Properties();
+    props.setProperty(FILTER_MAX_DENSITY, "" + filterMaxDensity);
+    props.setProperty(PIVOT_GROWTH_BITS, "" + pivotGrowthBits);
+    props.setProperty(PIVOT_HIGH_GROWTH, highGrowthPivot.optionName());
+    props.setProperty(FLOATING_MIN_ORDER, "" + floatingMinOrder);
+    try (OutputStream out = new FileOutputStream(path)) {
+      props.store(out, "Lab3 engine profile, written by --calibrate");
+    }
+  }
+
+  /**
+   * Overrides toString of Object.
+   * @return: The thresholds of the profile, one per line.
+   */
+  @Override
+  public String toString() {
+    return FILTER_MAX_DENSITY + "=" + filterMaxDensity + "\n" +
+            PIVOT_GROWTH_BITS + "=" + pivotGrowthBits + "\n" +
+            PIVOT_HIGH_GROWTH + "=" + highGrowthPivot.optionName() + "\n" +
+            FLOATING_MIN_ORDER + "=" + floatingMinOrder;
+  }
+}
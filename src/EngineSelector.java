@@ -0,0 +1,188 @@
+/**
+ * Dispatcher in front of the determinant engines. Looks at the order,
+ * density and largest magnitude of each parsed matrix, its structure,
+ * and whether the run needs exact results, and picks the engine that
+ * should be cheapest according to the host's EngineProfile. Keeps the
+ * reason for the last choice so that it can be traced per matrix.
+ * Choosing allocates nothing; the trace text is only built on request.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class EngineSelector {
+
+  /**
+   * The engines a matrix can be dispatched to.
+   */
+  enum Engine {
+    TRIANGULAR("triangular"),
+    PERMUTATION("permutation"),
+    BLOCK_DIAGONAL("block-diagonal"),
+    FLOATING("floating"),
+    FILTERED_EXACT("filtered-exact"),
+    EXACT("exact");
+
+    private final String traceName;
+
+    /**
+     * Constructor for the Engine.
+     * @param traceName: The name of the engine in the trace
+     */
+    Engine(String traceName) {
+      this.traceName = traceName;
+    }
+
+    /**
+     * @return: The name of the engine in the trace
+     */
+    String traceName() {
+      return traceName;
+    }
+  }
+
+  private EngineProfile profile;
+  private PivotStrategy fixedPivot;
+  private boolean exactRequired;
+  private boolean filterAvailable;
+  private boolean filterForced;
+  private Engine engine;
+  private PivotStrategy pivot;
+  private int growthBits;
+  private String[][] names; // by engine and pivot strategy
+
+  /**
+   * Constructor for the EngineSelector.
+   * @param profile: The thresholds to dispatch on
+   * @param fixedPivot: The pivot strategy given on the command line,
+   *                  or null to let the selector choose
+   * @param exactRequired: Whether the determinants must be exact
+   * @param filterAvailable: Whether the pre-filter can be used
+   * @param filterForced: Whether the pre-filter was asked for on the
+   *                    command line, so that it is used for every
+   *                    matrix rather than as the profile says
+   */
+  EngineSelector(EngineProfile profile, PivotStrategy fixedPivot,
+                 boolean exactRequired, boolean filterAvailable,
+                 boolean filterForced) {
+    this.profile = profile;
+    this.fixedPivot = fixedPivot;
+    this.exactRequired = exactRequired;
+    this.filterAvailable = filterAvailable;
+    this.filterForced = filterAvailable && filterForced;
+    names = new String[Engine.values().length][];
+    for (Engine e : Engine.values()) {
+      names[e.ordinal()] = new String[PivotStrategy.values().length];
+      for (PivotStrategy p : PivotStrategy.values()) {
+        names[e.ordinal()][p.ordinal()] =
+                e == Engine.EXACT || e == Engine.FILTERED_EXACT ?
+                e.traceName() + "(" + p.optionName() + ")" : e.traceName();
+      }
+    }
+  }
+
+  /**
+   * Chooses the engine for a complete matrix.
+   * @param s: The structure recorded while the matrix was parsed
+   * @return: The chosen engine
+   */
+  Engine select(MatrixStructure s) {
+    int n = s.getOrder();
+    // Rough bound on the bits the entries can grow to
+    growthBits = n * (64 - Long.numberOfLeadingZeros(s.maxAbs()));
+    if (fixedPivot != null) {
+      pivot = fixedPivot;
+    } else if (growthBits >= profile.pivotGrowthBits) {
+      pivot = profile.highGrowthPivot;
+    } else {
+      pivot = PivotStrategy.FIRST_NONZERO;
+    }
+    if (s.isTriangular()) {
+      engine = Engine.TRIANGULAR;
+    } else if (s.isPermutation()) {
+      engine = Engine.PERMUTATION;
+    } else if (s.findBlocks() > 1) {
+      engine = Engine.BLOCK_DIAGONAL;
+    } else if (!exactRequired && n >= profile.floatingMinOrder) {
+      engine = Engine.FLOATING;
+    } else if (filterForced || (filterAvailable &&
+            profile.filterMaxDensity > 0 &&
+            s.density() <= profile.filterMaxDensity)) {
+      engine = Engine.FILTERED_EXACT;
+    } else {
+      engine = Engine.EXACT;
+    }
+    return engine;
+  }
+
+  /**
+   * @return: The pivot strategy chosen for the last matrix
+   */
+  PivotStrategy pivotStrategy() {
+    return pivot;
+  }
+
+  /**
+   * @return: The name of the engine chosen for the last matrix, with
+   * the pivot strategy for the engines that eliminate exactly.
+   */
+  String engineName() {
+    return names[engine.ordinal()][pivot.ordinal()];
+  }
+
+  /**
+   * Describes the last choice for the per-matrix trace. Only builds
+   * the text when asked, so that select itself stays cheap.
+   * @param s: The structure of the last matrix
+   * @return: The trace line for the last matrix: its order, density
+   * and largest magnitude, the engine chosen and why.
+   */
+  String trace(MatrixStructure s) {
+    String reason;
+    switch (engine) {
+      case TRIANGULAR:
+        reason = s.isDiagonal() ? "diagonal" : s.isUpperTriangular() ?
+                "upper triangular" : "lower triangular";
+        break;
+      case PERMUTATION:
+        reason = "permutation matrix";
+        break;
+      case BLOCK_DIAGONAL:
+        reason = s.blockCount() + " diagonal blocks";
+        break;
+      case FLOATING:
+        reason = "order " + s.getOrder() + " >= floating.minOrder " +
+                profile.floatingMinOrder + ", inexact allowed";
+        break;
+      case FILTERED_EXACT:
+        reason = filterForced ? "pre-filter asked for" : "density " +
+                s.density() + " <= filter.maxDensity " +
+                profile.filterMaxDensity;
+        break;
+      default:
+        reason = filterAvailable ? "density " + s.density() +
+                " > filter.maxDensity " + profile.filterMaxDensity :
+                exactRequired ? "exact result required" :
+                "order " + s.getOrder() +
+                " < floating.minOrder " + profile.floatingMinOrder;
+    }
+    if (engine == Engine.FILTERED_EXACT || engine == Engine.EXACT ||
+            engine == Engine.BLOCK_DIAGONAL) {
+      reason += "; pivot " + pivot.optionName() + " (" + pivotReason() +
+              ")";
+    }
+    return "Engine: " + engineName() + " for order " + s.getOrder() +
+            ", density " + s.density() + ", max |entry| " + s.maxAbs() +
+            " because " + reason;
+  }
+
+  /**
+   * @return: Why the pivot strategy of the last matrix was chosen
+   */
+  private String pivotReason() {
+    if (fixedPivot != null) {
+      return "fixed on command line";
+    }
+    return "growth bits " + growthBits +
+            (growthBits >= profile.pivotGrowthBits ? " >= " : " < ") +
+            "pivot.growthBits " + profile.pivotGrowthBits;
+  }
+}
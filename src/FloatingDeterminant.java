@@ -0,0 +1,80 @@
+/**
+ * An inexact engine that calculates the determinant in double
+ * precision, by Gaussian elimination with partial pivoting, and rounds
+ * it to the nearest integer. Far cheaper than the exact engine for
+ * large orders, but the result may be off once it no longer fits in
+ * the 53 bits of a double, so it is only used when the run allows
+ * inexact results.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class FloatingDeterminant {
+
+  private int[] entries;
+  private double[] a;
+
+  /**
+   * Constructor for the FloatingDeterminant.
+   */
+  FloatingDeterminant() {
+    entries = new int[0];
+    a = new double[0];
+  }
+
+  /**
+   * Calculates the determinant of the complete, not yet reduced
+   * matrix.
+   * @param ml: The matrix
+   * @return: The determinant rounded to the nearest int
+   * @throws ArithmeticException if the determinant does not fit in
+   * an int
+   */
+  int determinant(MatrixList ml) {
+    int n = ml.getOrder();
+    if (entries.length < n * n) {
+      entries = new int[n * n];
+      a = new double[n * n];
+    }
+    ml.copyEntries(entries);
+    for (int e = 0; e < n * n; e++) {
+      a[e] = entries[e];
+    }
+    double det = 1;
+    for (int c = 0; c < n; c++) {
+      // Partial pivoting: largest magnitude in the column
+      int pivot = c;
+      for (int row = c + 1; row < n; row++) {
+        if (Math.abs(a[row * n + c]) > Math.abs(a[pivot * n + c])) {
+          pivot = row;
+        }
+      }
+      if (a[pivot * n + c] == 0) {
+        return 0;
+      }
+      if (pivot != c) {
+        for (int col = c; col < n; col++) {
+          double temp = a[c * n + col];
+          a[c * n + col] = a[pivot * n + col];
+          a[pivot * n + col] = temp;
+        }
+        det = -det;
+      }
+      double diag = a[c * n + c];
+      det *= diag;
+      for (int row = c + 1; row < n; row++) {
+        double factor = a[row * n + c] / diag;
+        if (factor == 0) {
+          continue;
+        }
+        for (int col = c + 1; col < n; col++) {
+          a[row * n + col] -= factor * a[c * n + col];
+        }
+      }
+    }
+    if (Math.abs(det) > Integer.MAX_VALUE) {
+      // The cast would saturate, let the caller recompute it exactly
+      throw new ArithmeticException("Determinant overflows an int");
+    }
+    return (int) Math.round(det);
+  }
+}
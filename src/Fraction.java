@@ -2,6 +2,9 @@
  * A class representing a fraction. Consists of a numerator
  * and denominator. Contains methods which provide add, divide,
  * subtract, multiplication functionality on the current Fraction.
+ * The in-place operations are checked: they work on long
+ * intermediates and throw an ArithmeticException if the reduced
+ * result does not fit in an int, rather than wrap around.
  * @Author: Falko Noe
  * @Version: 1.0
  */
@@ -68,6 +71,88 @@ public class Fraction {
             this.den * x.den));
   }
 
+  /**
+   * Overwrites the value held by this Fraction. Allows a Fraction
+   * to be reused as a mutable cell rather than allocating a new
+   * one for every arithmetic step.
+   * @param num: The int representation of the numerator
+   * @param den: The int representation of the denominator
+   */
+  void set(int num, int den) {
+    this.num = num;
+    this.den = den;
+  }
+
+  /**
+   * In-place counterpart of mult. Stores the reduced product of
+   * the two inputs in this Fraction.
+   * @param a: The left-hand factor
+   * @param b: The right-hand factor
+   * @throws ArithmeticException if the reduced product overflows
+   */
+  void setProduct(Fraction a, Fraction b) {
+    setReduced((long) a.num * b.num, (long) a.den * b.den);
+  }
+
+  /**
+   * In-place counterpart of div. Stores the reduced quotient of
+   * dividing a by b in this Fraction.
+   * @param a: The dividend
+   * @param b: The divisor
+   * @throws ArithmeticException if the reduced quotient overflows
+   */
+  void setQuotient(Fraction a, Fraction b) {
+    if (b.num < 0) {
+      setReduced(-((long) a.num * b.den), -((long) a.den * b.num));
+    } else {
+      setReduced((long) a.num * b.den, (long) a.den * b.num);
+    }
+  }
+
+  /**
+   * In-place counterpart of sub. Subtracts the input from this
+   * Fraction and reduces the result.
+   * @param x: The Fraction to subtract from this one.
+   * @throws ArithmeticException if the reduced difference overflows
+   */
+  void subInPlace(Fraction x) {
+    setReduced(Math.subtractExact((long) this.num * x.den,
+            (long) x.num * this.den), (long) this.den * x.den);
+  }
+
+  /**
+   * In-place counterpart of mult. Multiplies this Fraction by the
+   * input and reduces the result.
+   * @param x: The Fraction against which to multiply.
+   * @throws ArithmeticException if the reduced product overflows
+   */
+  void multInPlace(Fraction x) {
+    setReduced((long) this.num * x.num, (long) this.den * x.den);
+  }
+
+  /**
+   * Reduces the given numerator and denominator, without allocating,
+   * and stores them in this Fraction. Follows the same rules as the
+   * static reduce method.
+   * @param n: The numerator, which may exceed an int
+   * @param d: The denominator, which may exceed an int
+   * @throws ArithmeticException if the reduced numerator or
+   * denominator does not fit in an int
+   */
+  private void setReduced(long n, long d) {
+    if (n == 0) {
+      set(0, 1);
+      return;
+    }
+    // GCD of any number and 1 is 1
+    if (n != 1 && d != 1) {
+      long gcd = calcGcd(Math.abs(n), Math.abs(d));
+      n /= gcd;
+      d /= gcd;
+    }
+    set(Math.toIntExact(n), Math.toIntExact(d));
+  }
+
   /**
    * Performs the reduction of the input Fraction. Will either
    * return the original Fraction or a reduced form.
@@ -92,25 +177,26 @@ public class Fraction {
     if (denominator < 0) {
       denominator = 0 - denominator;
     }
-    int gcd = calcGcd(numerator, denominator);
+    int gcd = (int) calcGcd(numerator, denominator);
     return new Fraction(x.num/gcd, x.den/gcd);
   }
 
   /**
-   * Recursive method that calculates the GCD of the two
+   * Method that calculates the GCD of the two
    * input integers.
    * @param a: The numerator, but could be any integer
    * @param b: The denominator, but could be any integer
    * @return The GCD
    */
-  private static int calcGcd(int a, int b) {
-    if (a == b) {
-      return a;
-    } else if (b > a) {
-      return calcGcd(a, b - a);
-    } else {
-      return calcGcd(a - b, a);
+  private static long calcGcd(long a, long b) {
+    // Euclid's algorithm by remainder; repeated subtraction takes
+    // time (and stack) proportional to the quotient
+    while (b != 0) {
+      long rem = a % b;
+      a = b;
+      b = rem;
     }
+    return a;
   }
 
   /**
@@ -135,6 +221,31 @@ public class Fraction {
     return this.num == 0;
   }
 
+  /**
+   * Returns the number of bits needed to hold the magnitudes of the
+   * numerator and denominator. Used as the measure of growth of the
+   * entries during elimination.
+   * @return: The combined bit length of numerator and denominator.
+   */
+  int bitLength() {
+    return (32 - Integer.numberOfLeadingZeros(Math.abs(num))) +
+            (32 - Integer.numberOfLeadingZeros(Math.abs(den)));
+  }
+
+  /**
+   * Compares the absolute value of this Fraction with that of the
+   * input, without any risk of overflow.
+   * @param x: The Fraction to compare against.
+   * @return: A negative number, zero or a positive number if the
+   * absolute value of this Fraction is less than, equal to or greater
+   * than that of the input.
+   */
+  int compareAbs(Fraction x) {
+    long lhs = Math.abs((long) this.num) * Math.abs((long) x.den);
+    long rhs = Math.abs((long) x.num) * Math.abs((long) this.den);
+    return Long.compare(lhs, rhs);
+  }
+
   /**
    * Converts the current Fraction to the result of dividing
    * the numerator
@@ -1,4 +1,6 @@
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Main driver and entry point into the application. Reads the input
@@ -7,41 +9,309 @@ import java.io.*;
  * This application must be called
  * from the command line with valid input/output file paths
  * as arguments.
+ *
+ * Options, given before the input/output paths:
+ *   --parallel[=threads]  split the input at matrix boundaries and
+ *                         parse the pieces on several threads
+ *   --save-index          save the boundary index next to the input
+ *   --pivot=strategy      first-nonzero, smallest-abs or
+ *                         smallest-bitlength (default: chosen per matrix
+ *                         from the engine profile)
+ *   --filter[=primes]     skip the exact engine for matrices proven
+ *                         singular with the help of a determinant
+ *                         modulo 1 (default) or 2 random primes, for
+ *                         every matrix whatever the engine profile says
+ *   --inexact             allow the floating engine for large orders
+ *   --batch[=size]        solve runs of same-order matrices of order up
+ *                         to 4 together, up to size (default 4096) at once
+ *   --profile=path        engine profile to dispatch on (default: none,
+ *                         the built-in defaults)
+ *   --trace               print the engine chosen for every matrix, by
+ *                         its number in the input, to stdout
+ *   --calibrate           measure the engines on this host and write the
+ *                         engine profile to the --profile path (default:
+ *                         ~/.lab3-profile.properties); takes no paths
+ *   --checkpoint[=secs]   checkpoint the progress next to the output file
+ *                         every secs (default 60) seconds
+ *   --resume              resume from the last checkpoint and append to
+ *                         the output; implies --checkpoint
+ *   --workers=n           coordinator mode: hand the input out in chunks
+ *                         to n worker JVMs started on this machine, plus
+ *                         any started elsewhere with --worker
+ *   --port=port           port the coordinator listens on for workers
+ *                         (default: any free port)
+ *   --remote              let workers on other machines join; without it
+ *                         the coordinator listens on loopback only
+ *   --worker=host:port    worker mode: serve a coordinator instead of
+ *                         reading an input file; takes no paths. The
+ *                         token of the run must be in LAB3_TOKEN
  * @Author Falko Noe
  * @Version 1.0
  */
 public class Lab3 {
 
+  private static final int DEFAULT_BATCH_SIZE = 4096;
+  private static final int DEFAULT_CHECKPOINT_SECONDS = 60;
+
+  private PivotStrategy pivotStrategy;
+  private EngineProfile profile;
+  private boolean exactRequired;
+  private RunMetrics metrics;
+  private long[] filterPrimes;
+  private boolean filterForced;
+  private int batchSize;
+  private boolean tracing;
+
+  /**
+   * Constructor for Lab3.
+   * @param strategy: The pivot strategy used for every matrix, or
+   *                null to let the EngineSelector choose.
+   * @param profile: The thresholds the EngineSelector dispatches on.
+   * @param exactRequired: Whether the determinants must be exact.
+   * @param filterPrimes: The primes for the singularity pre-filter,
+   *                    or null to always run the exact engine.
+   * @param filterForced: Whether the pre-filter was asked for, so that
+   *                    it runs for every matrix rather than as the
+   *                    profile says.
+   * @param batchSize: The number of small same-order matrices solved
+   *                 together, or 0 to solve every matrix on its own.
+   * @param tracing: Whether the engine chosen for every matrix is
+   *               traced.
+   */
+  Lab3(PivotStrategy strategy, EngineProfile profile,
+       boolean exactRequired, long[] filterPrimes, boolean filterForced,
+       int batchSize, boolean tracing) {
+    pivotStrategy = strategy;
+    this.profile = profile;
+    this.exactRequired = exactRequired;
+    metrics = new RunMetrics();
+    this.filterPrimes = filterPrimes;
+    this.filterForced = filterForced;
+    this.batchSize = batchSize;
+    this.tracing = tracing;
+  }
+
   /**
    * The main entry point to the class. Will be called when the
    * user runs this program from the command-line.
-   * @param args An array holding the two command-line arguments. The
-   *             first argument is the input file in text format. The
-   *             second argument is the path to the output text file.
-   *             Both arguments must be valid paths.
+   * @param args An array holding the command-line arguments. Any
+   *             options come first. The remaining first argument is
+   *             the input file in text format. The second argument is
+   *             the path to the output text file. Both arguments must
+   *             be valid paths.
    */
   public static void main(String[] args) {
 
     BufferedReader input; // will hold the input
     BufferedWriter output; // will hold the output
     Lab3 lab;
+    int threads = 0; // 0 --> sequential
+    boolean saveIndex = false;
+    PivotStrategy strategy = null; // null --> chosen per matrix
+    String profilePath = null; // null --> the built-in defaults
+    boolean exactRequired = true;
+    boolean calibrate = false;
+    int filterPrimeCount = 0;
+    boolean filterForced = false;
+    int batchSize = 0; // 0 --> no batching
+    boolean tracing = false;
+    int checkpointSeconds = -1; // -1 --> no checkpoints
+    boolean resume = false;
+    int workers = -1; // -1 --> not a coordinator
+    int port = 0;
+    boolean remote = false;
+    String coordinator = null; // host:port when running as a worker
+    List<String> engineOptions = new ArrayList<>(); // passed to workers
+    boolean badOption = false;
+
+    int argIndex = 0;
+    while (argIndex < args.length && args[argIndex].startsWith("--") &&
+            !badOption) {
+      String option = args[argIndex++];
+      if (option.startsWith("--pivot=") || option.startsWith("--filter") ||
+              option.startsWith("--profile=") || option.equals("--inexact") ||
+              option.startsWith("--batch") || option.equals("--trace")) {
+        engineOptions.add(option);
+      }
+      if (option.equals("--parallel")) {
+        threads = Runtime.getRuntime().availableProcessors();
+      } else if (option.startsWith("--parallel=")) {
+        threads = parsePositive(option.substring("--parallel=".length()));
+        badOption = threads < 0;
+      } else if (option.equals("--save-index")) {
+        saveIndex = true;
+      } else if (option.startsWith("--pivot=")) {
+        strategy = PivotStrategy.fromOptionName(
+                option.substring("--pivot=".length()));
+        badOption = strategy == null;
+      } else if (option.equals("--filter")) {
+        filterPrimeCount = 1;
+        filterForced = true;
+      } else if (option.startsWith("--filter=")) {
+        filterForced = true;
+        filterPrimeCount = parsePositive(
+                option.substring("--filter=".length()));
+        badOption = filterPrimeCount < 1 || filterPrimeCount > 2;
+      } else if (option.equals("--batch")) {
+        batchSize = DEFAULT_BATCH_SIZE;
+      } else if (option.startsWith("--batch=")) {
+        batchSize = parsePositive(option.substring("--batch=".length()));
+        badOption = batchSize < 0;
+      } else if (option.equals("--trace")) {
+        tracing = true;
+      } else if (option.equals("--checkpoint")) {
+        checkpointSeconds = DEFAULT_CHECKPOINT_SECONDS;
+      } else if (option.startsWith("--checkpoint=")) {
+        checkpointSeconds = parseNonNegative(
+                option.substring("--checkpoint=".length()));
+        badOption = checkpointSeconds < 0;
+      } else if (option.equals("--resume")) {
+        resume = true;
+      } else if (option.equals("--inexact")) {
+        exactRequired = false;
+      } else if (option.startsWith("--profile=")) {
+        profilePath = option.substring("--profile=".length());
+      } else if (option.equals("--calibrate")) {
+        calibrate = true;
+      } else if (option.startsWith("--workers=")) {
+        workers = parseNonNegative(
+                option.substring("--workers=".length()));
+        badOption = workers < 0;
+      } else if (option.startsWith("--port=")) {
+        port = parsePositive(option.substring("--port=".length()));
+        badOption = port < 0;
+      } else if (option.equals("--remote")) {
+        remote = true;
+      } else if (option.startsWith("--worker=")) {
+        coordinator = option.substring("--worker=".length());
+        badOption = coordinator.lastIndexOf(':') < 0;
+      } else {
+        badOption = true; // unknown option
+      }
+    }
 
-    if (args.length != 2) {
-      System.err.println("Usage:  java Lab3 [input file pathname]" +
+    if (resume && checkpointSeconds < 0) {
+      checkpointSeconds = DEFAULT_CHECKPOINT_SECONDS;
+    }
+    // Checkpoints are only kept by runs that write the output themselves
+    badOption |= checkpointSeconds >= 0 && (workers >= 0 || calibrate ||
+            coordinator != null);
+    int paths = coordinator == null && !calibrate ? 2 : 0;
+    if (args.length - argIndex != paths || badOption) {
+      System.err.println("Usage:  java Lab3 [--parallel[=threads]]" +
+              " [--save-index] [--checkpoint[=secs]] [--resume]" +
+              " [--pivot=strategy] [--filter[=primes]]" +
+              " [--inexact] [--batch[=size]] [--profile=path]" +
+              " [--trace] [--workers=n] [--port=port] [--remote]" +
+              " [input file pathname]" +
               " [output file pathname]");
+      System.err.println("        java Lab3 [--pivot=strategy]" +
+              " [--filter[=primes]] [--inexact] [--batch[=size]]" +
+              " [--profile=path] [--trace] --worker=host:port");
+      System.err.println("        java Lab3 [--profile=path] --calibrate");
       System.exit(1);
     }
 
+    if (calibrate) {
+      if (profilePath == null) {
+        profilePath = EngineProfile.DEFAULT_PATH;
+      }
+      try {
+        EngineProfile calibrated = new EngineCalibrator().calibrate();
+        calibrated.save(profilePath);
+        System.out.println("Wrote engine profile " + profilePath + ":");
+        System.out.println(calibrated);
+        System.out.println("Use it with --profile=" + profilePath);
+      } catch (IOException e) {
+        System.err.println(e);
+        System.err.println("Was not able to write the engine profile");
+      }
+      return;
+    }
+    EngineProfile profile;
+    if (profilePath == null) {
+      profile = new EngineProfile();
+      System.out.println("Engine profile: built-in defaults");
+    } else {
+      profile = EngineProfile.load(profilePath);
+      System.out.println("Engine profile: " + profilePath);
+    }
+    if (filterPrimeCount == 0 && profile.filterMaxDensity > 0) {
+      filterPrimeCount = 1; // the profile may call for the filter
+    }
+    lab = new Lab3(strategy, profile, exactRequired,
+            filterPrimeCount > 0 ?
+            ModularFilter.randomPrimes(filterPrimeCount) : null,
+            filterForced, batchSize, tracing);
+
+    if (coordinator != null) {
+      int colon = coordinator.lastIndexOf(':');
+      String token = System.getenv(DistributedWorker.TOKEN_VARIABLE);
+      if (token == null) {
+        System.err.println("Set " + DistributedWorker.TOKEN_VARIABLE +
+                " to the token of the coordinator");
+        System.exit(1);
+      }
+      try {
+        new DistributedWorker(lab).run(coordinator.substring(0, colon),
+                Integer.parseInt(coordinator.substring(colon + 1)), token);
+      } catch (IOException | NumberFormatException e) {
+        System.err.println(e);
+        System.err.println("Was not able to serve the coordinator");
+      }
+      return; // the metrics went to the coordinator with every chunk
+    }
+    String inPath = args[argIndex];
+    String outPath = args[argIndex + 1];
+
+    if (workers >= 0) {
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(outPath))) {
+        // Without local workers, remote ones are the only ones there are
+        new DistributedCoordinator(workers, port, engineOptions, saveIndex,
+                remote || workers == 0, lab.settings(), lab.metrics)
+                .run(inPath, out);
+      } catch (IOException e) {
+        System.err.println(e);
+        System.err.println("Was not able to process the input file");
+      }
+      lab.metrics.report(System.out);
+      return;
+    }
+
+    if (checkpointSeconds >= 0) {
+      try {
+        new ParallelMatrixRunner(lab, Math.max(threads, 1), saveIndex)
+                .run(inPath, outPath, checkpointSeconds * 1000L, resume);
+      } catch (IOException e) {
+        System.err.println(e);
+        System.err.println("Was not able to process the input file");
+      }
+      lab.metrics.report(System.out);
+      return;
+    }
+
+    if (threads > 0) {
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(outPath))) {
+        new ParallelMatrixRunner(lab, threads, saveIndex).run(inPath, out);
+      } catch (IOException e) {
+        System.err.println(e);
+        System.err.println("Was not able to process the input file");
+      }
+      lab.metrics.report(System.out);
+      return;
+    }
+
     try {
-      input = new BufferedReader(new FileReader(args[0]));
-      output = new BufferedWriter(new FileWriter(args[1]));
+      input = new BufferedReader(new FileReader(inPath));
+      output = new BufferedWriter(new FileWriter(outPath));
     } catch (IOException e) {
       System.err.println("Make sure the input/output path is correct.");
       return;
     }
 
-    lab = new Lab3();
-    lab.parseInputMatrices(input, output); // read input and process
+    // read input and process
+    lab.parseInputMatrices(input, output, 0, null);
+    lab.metrics.report(System.out);
 
     try {
       /* Close the input and output, writes file output,
@@ -53,6 +323,83 @@ public class Lab3 {
     }
   }
 
+  /**
+   * Hands over the metrics collected so far and collects afresh, so
+   * that a worker can send the metrics of every chunk on their own.
+   * @return: The metrics collected since the last call
+   */
+  RunMetrics takeMetrics() {
+    RunMetrics taken = metrics;
+    metrics = new RunMetrics();
+    return taken;
+  }
+
+  /**
+   * Describes how the determinants are calculated, for a checkpoint
+   * to be resumed, or a worker to be served, with the same settings
+   * only. Covers the options and the thresholds of the engine profile,
+   * but not where the profile was loaded from or the random primes of
+   * the pre-filter, which do not change the results.
+   * @return: The settings, one per line
+   */
+  String settings() {
+    return "pivot=" + (pivotStrategy == null ?
+            "profile" : pivotStrategy.optionName()) + "\n" +
+            "exact=" + exactRequired + "\n" +
+            "filter.primes=" + (filterPrimes == null ?
+            0 : filterPrimes.length) + "\n" +
+            "filter.forced=" + filterForced + "\n" +
+            "batch=" + batchSize + "\n" + profile;
+  }
+
+  /**
+   * Parses a piece of input that starts at a matrix boundary, as
+   * found by MatrixIndex, and returns the output it produces.
+   * @param text: The text of one or more whole segments of the input
+   * @param firstMatrix: The number of segments in the input before
+   *                   the text, to number the traced matrices by
+   * @param trace: Where the trace of the segments is appended, if
+   *             tracing
+   * @return: The output for those segments
+   */
+  String parseSegment(String text, long firstMatrix, StringBuilder trace) {
+    StringWriter sw = new StringWriter(text.length() + 64);
+    BufferedReader in = new BufferedReader(new StringReader(text));
+    BufferedWriter out = new BufferedWriter(sw);
+    parseInputMatrices(in, out, firstMatrix, trace);
+    try {
+      out.flush();
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * Parses a command-line option value that must be a positive integer.
+   * @param value: The text of the option value
+   * @return: The value, or -1 if it is not a positive integer
+   */
+  private static int parsePositive(String value) {
+    int n = parseNonNegative(value);
+    return n > 0 ? n : -1;
+  }
+
+  /**
+   * Parses a command-line option value that must be 0 or a positive
+   * integer.
+   * @param value: The text of the option value
+   * @return: The value, or -1 if it is not 0 or a positive integer
+   */
+  private static int parseNonNegative(String value) {
+    try {
+      int n = Integer.parseInt(value);
+      return n >= 0 ? n : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   /**
    * Reads the input file character by character via the BufferedReader
    * and passes the characters to ReadMatrixAndCompute which
@@ -62,18 +409,29 @@ public class Lab3 {
    *             will be read from
    * @param out: The output BufferedWriter which the output
    *           will be written to.
+   * @param firstMatrix: The number of matrices in the input before
+   *                   the first one read here
+   * @param trace: Where the trace is appended, if tracing, or null to
+   *             print it to stdout
    */
-  private void parseInputMatrices(BufferedReader input,
-                                  BufferedWriter out) {
+  private void parseInputMatrices(BufferedReader input, BufferedWriter out,
+                                  long firstMatrix, StringBuilder trace) {
     int curr;
     char c;
-    ReadMatrixAndCompute rmac = new ReadMatrixAndCompute(input, out);
+    EngineSelector selector = new EngineSelector(profile, pivotStrategy,
+            exactRequired, filterPrimes != null, filterForced);
+    ReadMatrixAndCompute rmac = new ReadMatrixAndCompute(input, out,
+            selector, metrics, filterPrimes, batchSize);
+    if (tracing) {
+      rmac.enableTrace(firstMatrix, trace);
+    }
     try {
       // Read until end of the file is reached
       while (((curr = input.read()) != -1)) {
         c = (char) curr;
         rmac.handleCharacter(curr);
       }
+      rmac.finish();
     } catch (IOException e) {
       System.err.println(e);
       System.err.println("Was not able to read the input file");
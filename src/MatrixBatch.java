@@ -0,0 +1,255 @@
+import java.math.BigInteger;
+
+/**
+ * A batch of small matrices of the same order, stored as a structure
+ * of arrays: entry (row, col) of matrix m lives at
+ * entries[(row * order + col) * capacity + m]. The determinants of the
+ * whole batch are calculated in one pass whose loops run across the
+ * matrices rather than within one, so every iteration does the same
+ * straight-line arithmetic on neighbouring array slots, which the JIT
+ * can vectorize. No Nodes or Fractions are created per matrix.
+ *
+ * The determinants are expanded in int arithmetic, which wraps modulo
+ * 2^32. Since the expansion needs no division, the result is exact
+ * whenever the determinant fits in an int, with no intermediate
+ * overflow to worry about. Whether it does is decided per matrix from
+ * its largest entry by Hadamard's bound; the few matrices for which
+ * the bound does not rule out overflow are calculated again exactly
+ * with BigDeterminant.
+ *
+ * Matrices are added by beginning the next free slot, setting its
+ * entries and then committing it, so a matrix that turns out to be
+ * malformed half way through is simply never committed.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class MatrixBatch {
+
+  static final int MAX_ORDER = 4;
+  // By order, the largest entry magnitude m with n^n * m^(2n) < 2^62,
+  // so that Hadamard's bound keeps the determinant below 2^31
+  private static final long[] SAFE_MAX_ABS =
+          {0, Long.MAX_VALUE, 32767, 744, 107};
+
+  private int capacity;
+  private int order;
+  private int size;
+  private int[] entries;
+  private int[] dets;
+  private long[] maxAbs; // the largest entry magnitude of every matrix
+
+  /**
+   * Constructor for the MatrixBatch.
+   * @param capacity: The number of matrices the batch can hold
+   */
+  MatrixBatch(int capacity) {
+    this.capacity = capacity;
+    entries = new int[MAX_ORDER * MAX_ORDER * capacity];
+    dets = new int[capacity];
+    maxAbs = new long[capacity];
+  }
+
+  /**
+   * Empties the batch and primes it for matrices of the given order.
+   * @param order: The order of the next matrices, 1 to MAX_ORDER
+   */
+  void reset(int order) {
+    this.order = order;
+    size = 0;
+  }
+
+  /**
+   * @return: The order of the matrices in the batch
+   */
+  int order() {
+    return order;
+  }
+
+  /**
+   * @return: The number of committed matrices in the batch
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return: True if no further matrix can be added
+   */
+  boolean isFull() {
+    return size == capacity;
+  }
+
+  /**
+   * Sets an entry of the matrix being added.
+   * @param x: The value of the entry
+   * @param row: The row of the entry
+   * @param col: The column of the entry
+   */
+  void set(int x, int row, int col) {
+    entries[(row * order + col) * capacity + size] = x;
+    long abs = Math.abs((long) x);
+    if (abs > maxAbs[size]) {
+      maxAbs[size] = abs;
+    }
+  }
+
+  /**
+   * Starts a matrix in the next free slot, forgetting whatever was set
+   * there for a matrix that turned out to be malformed. Must be called
+   * before the entries of every matrix are set.
+   */
+  void begin() {
+    maxAbs[size] = 0;
+  }
+
+  /**
+   * Adds the matrix whose entries were set to the batch.
+   */
+  void commit() {
+    size++;
+  }
+
+  /**
+   * @param m: The index of a committed matrix
+   * @return: True if the determinant of the matrix may not fit in an
+   * int, so that determinants() only gives it modulo 2^32
+   */
+  boolean mayOverflow(int m) {
+    return maxAbs[m] > SAFE_MAX_ABS[order];
+  }
+
+  /**
+   * Calculates the determinant of one committed matrix exactly.
+   * @param m: The index of the matrix
+   * @return: The determinant of the matrix
+   */
+  BigInteger exactDeterminant(int m) {
+    int[] matrix = new int[order * order];
+    for (int e = 0; e < matrix.length; e++) {
+      matrix[e] = entries[e * capacity + m];
+    }
+    return BigDeterminant.determinant(matrix, order);
+  }
+
+  /**
+   * Calculates the determinants of every committed matrix.
+   * @return: The determinants, in the order the matrices were
+   * committed. Only the first size() are valid, and the array is
+   * reused by the next call.
+   */
+  int[] determinants() {
+    determinants(order, size, capacity, entries, dets);
+    return dets;
+  }
+
+  /**
+   * Calculates the determinants of matrices packed in structure-of-
+   * arrays layout.
+   * @param n: The order of the matrices, 1 to MAX_ORDER
+   * @param count: The number of matrices
+   * @param stride: The distance between two entries of one matrix
+   * @param a: The entries, entry (row, col) of matrix m at
+   *         a[(row * n + col) * stride + m]
+   * @param det: The array to store the determinant of matrix m at
+   *           det[m]
+   */
+  static void determinants(int n, int count, int stride, int[] a,
+                           int[] det) {
+    switch (n) {
+      case 1:
+        System.arraycopy(a, 0, det, 0, count);
+        break;
+      case 2:
+        determinants2(count, stride, a, det);
+        break;
+      case 3:
+        determinants3(count, stride, a, det);
+        break;
+      case 4:
+        determinants4(count, stride, a, det);
+        break;
+      default:
+        throw new IllegalArgumentException("Order " + n +
+                " is not between 1 and " + MAX_ORDER);
+    }
+  }
+
+  /**
+   * Calculates 2x2 determinants.
+   * @param count: The number of matrices
+   * @param s: The stride
+   * @param a: The entries
+   * @param det: The determinants
+   */
+  private static void determinants2(int count, int s, int[] a, int[] det) {
+    for (int m = 0; m < count; m++) {
+      det[m] = a[m] * a[3 * s + m] - a[s + m] * a[2 * s + m];
+    }
+  }
+
+  /**
+   * Calculates 3x3 determinants by expansion along the first row.
+   * @param count: The number of matrices
+   * @param s: The stride
+   * @param a: The entries
+   * @param det: The determinants
+   */
+  private static void determinants3(int count, int s, int[] a, int[] det) {
+    for (int m = 0; m < count; m++) {
+      int a3 = a[3 * s + m];
+      int a4 = a[4 * s + m];
+      int a5 = a[5 * s + m];
+      int a6 = a[6 * s + m];
+      int a7 = a[7 * s + m];
+      int a8 = a[8 * s + m];
+      det[m] = a[m] * (a4 * a8 - a5 * a7) -
+              a[s + m] * (a3 * a8 - a5 * a6) +
+              a[2 * s + m] * (a3 * a7 - a4 * a6);
+    }
+  }
+
+  /**
+   * Calculates 4x4 determinants by Laplace expansion along the first
+   * two rows: the sum of the products of each 2x2 minor of the top
+   * rows with its complementary minor of the bottom rows.
+   * @param count: The number of matrices
+   * @param s: The stride
+   * @param a: The entries
+   * @param det: The determinants
+   */
+  private static void determinants4(int count, int s, int[] a, int[] det) {
+    for (int m = 0; m < count; m++) {
+      int a0 = a[m];
+      int a1 = a[s + m];
+      int a2 = a[2 * s + m];
+      int a3 = a[3 * s + m];
+      int a4 = a[4 * s + m];
+      int a5 = a[5 * s + m];
+      int a6 = a[6 * s + m];
+      int a7 = a[7 * s + m];
+      int a8 = a[8 * s + m];
+      int a9 = a[9 * s + m];
+      int a10 = a[10 * s + m];
+      int a11 = a[11 * s + m];
+      int a12 = a[12 * s + m];
+      int a13 = a[13 * s + m];
+      int a14 = a[14 * s + m];
+      int a15 = a[15 * s + m];
+      // Minors of rows 0-1 and rows 2-3, named by their columns
+      int top01 = a0 * a5 - a1 * a4;
+      int top02 = a0 * a6 - a2 * a4;
+      int top03 = a0 * a7 - a3 * a4;
+      int top12 = a1 * a6 - a2 * a5;
+      int top13 = a1 * a7 - a3 * a5;
+      int top23 = a2 * a7 - a3 * a6;
+      int bot01 = a8 * a13 - a9 * a12;
+      int bot02 = a8 * a14 - a10 * a12;
+      int bot03 = a8 * a15 - a11 * a12;
+      int bot12 = a9 * a14 - a10 * a13;
+      int bot13 = a9 * a15 - a11 * a13;
+      int bot23 = a10 * a15 - a11 * a14;
+      det[m] = top01 * bot23 - top02 * bot13 + top03 * bot12 +
+              top12 * bot03 - top13 * bot02 + top23 * bot01;
+    }
+  }
+}
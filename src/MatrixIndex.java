@@ -0,0 +1,274 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An index of the matrix boundaries within an input file. Each entry
+ * is the byte offset at which a segment starts; a segment is either
+ * one matrix (its order line plus that many lines) or a single order
+ * line that could not be parsed. Every segment starts with
+ * ReadMatrixAndCompute in its reset state, so segments can be parsed
+ * independently of one another and their outputs concatenated in
+ * order to give the same result as one sequential pass.
+ *
+ * The pre-scan only reads each order line and then skips that many
+ * lines, without looking at the matrix entries. If an order line
+ * holds an order of 0 the state machine's behaviour for the lines
+ * that follow can no longer be predicted line by line, so the rest
+ * of the file is kept as one final segment. Segments are read into
+ * memory whole, so none may be longer than MAX_READ_BYTES.
+ *
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class MatrixIndex {
+
+  private static final int MAGIC = 0x4c334958; // "L3IX"
+  private static final String SUFFIX = ".idx";
+  // The longest text a byte array, and so a String, can hold
+  static final long MAX_READ_BYTES = Integer.MAX_VALUE - 8;
+
+  private long[] starts;
+  private int size;
+  private long end;
+
+  /**
+   * Constructor for the MatrixIndex. Creates an empty index.
+   */
+  private MatrixIndex() {
+    starts = new long[64];
+    size = 0;
+    end = 0;
+  }
+
+  /**
+   * Scans the input file for matrix boundaries, starting at the
+   * given byte offset, which must itself be a segment boundary.
+   * @param path: The path of the input file
+   * @param from: The byte offset at which to start scanning
+   * @return: The index of all segments from the offset onwards
+   * @throws IOException if the file could not be read
+   */
+  static MatrixIndex scan(String path, long from) throws IOException {
+    MatrixIndex index = new MatrixIndex();
+    try (FileInputStream fis = new FileInputStream(path)) {
+      fis.getChannel().position(from);
+      InputStream in = new BufferedInputStream(fis, 1 << 16);
+      long pos = from;
+      int next;
+      while ((next = in.read()) != -1) {
+        index.add(pos);
+        pos++;
+        // Read the order line
+        int order = 0;
+        boolean valid = true;
+        while (next != -1 && next != '\r' && next != '\n') {
+          if (IntParser.isDigit(next)) {
+            order = order * 10 + IntParser.toDigit(next);
+          } else {
+            valid = false;
+          }
+          next = in.read();
+          if (next != -1) {
+            pos++;
+          }
+        }
+        pos += skipEndOfLine(in, next);
+        if (valid && order <= 0) {
+          // Unpredictable from here on, keep the rest as one segment
+          while (in.read() != -1) {
+            pos++;
+          }
+          break;
+        }
+        if (valid) {
+          // Skip the lines of the matrix
+          int lines = 0;
+          while (lines < order && (next = in.read()) != -1) {
+            pos++;
+            if (next == '\r' || next == '\n') {
+              pos += skipEndOfLine(in, next);
+              lines++;
+            }
+          }
+        }
+      }
+      index.end = pos;
+    }
+    return index;
+  }
+
+  /**
+   * Consumes the extra character that follows a Windows '\r', the
+   * same way ReadMatrixAndCompute does.
+   * @param in: The stream being scanned
+   * @param eol: The end of line character that was just read
+   * @return: The number of extra bytes consumed
+   * @throws IOException if the stream could not be read
+   */
+  private static int skipEndOfLine(InputStream in, int eol)
+          throws IOException {
+    if (eol == '\r' && in.read() != -1) {
+      return 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Loads the index saved next to the input file if it is still
+   * current, otherwise scans the input. Optionally saves a freshly
+   * scanned index next to the input file.
+   * @param path: The path of the input file
+   * @param save: Whether a freshly scanned index should be saved
+   * @return: The index of the whole input file
+   * @throws IOException if the input file could not be read
+   */
+  static MatrixIndex loadOrScan(String path, boolean save)
+          throws IOException {
+    File input = new File(path);
+    File saved = new File(path + SUFFIX);
+    if (saved.isFile()) {
+      try (DataInputStream in = new DataInputStream(
+              new BufferedInputStream(new FileInputStream(saved)))) {
+        if (in.readInt() == MAGIC && in.readLong() == input.length() &&
+                in.readLong() == input.lastModified()) {
+          MatrixIndex index = new MatrixIndex();
+          int count = in.readInt();
+          index.starts = new long[Math.max(count, 1)];
+          for (int k = 0; k < count; k++) {
+            index.starts[k] = in.readLong();
+          }
+          index.size = count;
+          index.end = input.length();
+          return index;
+        }
+      } catch (IOException e) {
+        System.err.println("Ignoring unreadable index " + saved);
+      }
+    }
+    MatrixIndex index = scan(path, 0);
+    if (save) {
+      index.save(input, saved);
+    }
+    return index;
+  }
+
+  /**
+   * Writes the index next to the input file, tagged with the input's
+   * length and modification time so that a stale index is ignored.
+   * @param input: The input file the index describes
+   * @param saved: The file to write the index to
+   */
+  private void save(File input, File saved) {
+    try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(saved)))) {
+      out.writeInt(MAGIC);
+      out.writeLong(input.length());
+      out.writeLong(input.lastModified());
+      out.writeInt(size);
+      for (int k = 0; k < size; k++) {
+        out.writeLong(starts[k]);
+      }
+    } catch (IOException e) {
+      System.err.println("Could not save index to " + saved);
+    }
+  }
+
+  /**
+   * Appends the start offset of a new segment.
+   * @param offset: The byte offset at which the segment starts
+   */
+  private void add(long offset) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, size * 2);
+    }
+    starts[size++] = offset;
+  }
+
+  /**
+   * @return: The number of segments in the index
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param k: The index of the segment
+   * @return: The byte offset at which segment k starts
+   */
+  long start(int k) {
+    return starts[k];
+  }
+
+  /**
+   * @param k: The index of the segment
+   * @return: The byte offset just past the end of segment k
+   */
+  long end(int k) {
+    return k + 1 < size ? starts[k + 1] : end;
+  }
+
+  /**
+   * Groups consecutive segments into chunks of roughly the target
+   * size, so that each unit of work handed to a thread is large
+   * enough to outweigh the cost of scheduling it.
+   * @param targetBytes: The minimum size of a chunk in bytes
+   * @return: The first segment of every chunk, followed by size()
+   */
+  int[] chunk(long targetBytes) {
+    int[] bounds = new int[size + 1];
+    int count = 0;
+    int k = 0;
+    while (k < size) {
+      bounds[count++] = k;
+      long chunkStart = starts[k];
+      while (k < size && end(k) - chunkStart < targetBytes) {
+        k++;
+      }
+      if (k < size) {
+        k++; // this segment reaches the target size
+      }
+    }
+    bounds[count++] = size;
+    return Arrays.copyOf(bounds, count);
+  }
+
+  /**
+   * Reads and decodes the text of the segments in [from, to).
+   * Positional reads are used, so several threads may share
+   * one channel.
+   * @param channel: The channel of the input file
+   * @param from: The first segment to read
+   * @param to: One past the last segment to read
+   * @return: The text of the segments
+   * @throws IOException if the file could not be read or the segments
+   * are longer than MAX_READ_BYTES
+   */
+  String read(FileChannel channel, int from, int to) throws IOException {
+    long offset = start(from);
+    long length = end(to - 1) - offset;
+    if (length > MAX_READ_BYTES) {
+      throw new IOException("The input from byte " + offset + " on is " +
+              length + " bytes without a matrix boundary, too long to" +
+              " read as one piece; run it sequentially");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    return Charset.defaultCharset().decode(buffer).toString();
+  }
+}
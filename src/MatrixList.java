@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * A MatrixList data structure. Stores a DxD matrix,
  * where D = the maximum dimension.
@@ -20,7 +22,13 @@
  * Once the matrix is complete, the determinant can be calculated
  * by calling the calcDeterminant method. This method will convert
  * the matrix to row-echelon form and the calculate the product of the
- * diagonal. The result is the determinant.
+ * diagonal. The result is the determinant. The pivot for each column
+ * is chosen according to the PivotStrategy of the MatrixList.
+ *
+ * Nodes and their Fractions are drawn from an arena owned by the
+ * MatrixList. Calling reset primes the same instance for the next
+ * matrix in O(1), so that a long batch run reuses one node grid
+ * instead of allocating a fresh one for every matrix.
  *
  * @Author: Falko Noe
  * @Version: 1.0
@@ -28,11 +36,18 @@
 class MatrixList {
 
   private Node[] rows;
+  private Node[] arena;
+  private int arenaUsed;
+  private Fraction multFactor;
+  private Fraction product;
+  private Fraction diagProduct;
   private int i;
   private int j;
   private Node curr;
   private Node itemAbove;
   private int maxDimens;
+  private PivotStrategy pivotStrategy;
+  private int maxBitLength;
 
   /**
    * Class Node which serves as the building block for the
@@ -65,10 +80,133 @@ class MatrixList {
    */
   MatrixList(int dimens) {
     rows = new Node[dimens];
+    arena = new Node[16]; // newNode grows it as entries arrive
+    arenaUsed = 0;
+    multFactor = new Fraction(0);
+    product = new Fraction(0);
+    diagProduct = new Fraction(0);
+    pivotStrategy = PivotStrategy.FIRST_NONZERO;
+    maxDimens = dimens;
+    i = 0;
+    j = 0;
+    curr = null;
+  }
+
+  /**
+   * Primes the MatrixList for a new matrix of the given order.
+   * All Nodes handed out so far are returned to the arena in O(1);
+   * the header array is only reallocated if the new order exceeds
+   * every order seen so far.
+   * @param dimens: The maximum dimensions in terms of
+   *              width and height of the next matrix.
+   */
+  void reset(int dimens) {
+    if (dimens > rows.length) {
+      rows = new Node[dimens];
+    }
+    arenaUsed = 0;
     maxDimens = dimens;
     i = 0;
     j = 0;
     curr = null;
+    itemAbove = null;
+  }
+
+  /**
+   * Sets the strategy used to choose the pivot of each column.
+   * @param strategy: The pivot strategy to use from now on.
+   */
+  void setPivotStrategy(PivotStrategy strategy) {
+    pivotStrategy = strategy;
+  }
+
+  /**
+   * Returns the largest bit length of any numerator or denominator
+   * produced by the last call to calculateDeterminant, as a measure
+   * of how much the entries grew during elimination.
+   * @return: The largest bit length seen.
+   */
+  int getMaxBitLength() {
+    return maxBitLength;
+  }
+
+  /**
+   * @return: The order of the matrix currently in memory.
+   */
+  int getOrder() {
+    return maxDimens;
+  }
+
+  /**
+   * Copies the entries of the complete, not yet reduced matrix into
+   * the input array in row-major order.
+   * @param dst: The array to copy into. Must hold at least
+   *           order * order entries.
+   */
+  void copyEntries(int[] dst) {
+    int k = 0;
+    for (int row = 0; row < maxDimens; row++) {
+      for (Node x = rows[row]; x != null; x = x.next) {
+        dst[k++] = x.datum.toInt();
+      }
+    }
+  }
+
+  /**
+   * Copies the square block of the complete, not yet reduced matrix
+   * spanning rows and columns [from, to) into another MatrixList.
+   * @param dst: The MatrixList to copy the block into. It is reset
+   *           to the order of the block first.
+   * @param from: The first row and column of the block
+   * @param to: One past the last row and column of the block
+   */
+  void copyBlockInto(MatrixList dst, int from, int to) {
+    dst.reset(to - from);
+    for (int row = from; row < to; row++) {
+      Node x = rows[row];
+      for (int col = 0; col < from; col++) {
+        x = x.next;
+      }
+      for (int col = from; col < to; col++) {
+        dst.add(x.datum.toInt(), row - from, col - from);
+        x = x.next;
+      }
+    }
+  }
+
+  /**
+   * Returns the product of the diagonal without reducing the matrix
+   * first, which is the determinant of a triangular matrix.
+   * @return: The product of the diagonal.
+   * @throws ArithmeticException if the product overflows an int
+   */
+  int diagonalProduct() {
+    return calcDiagonal();
+  }
+
+  /**
+   * Hands out the next free Node of the arena, holding the input
+   * value. A Node (and its Fraction) is only allocated the first
+   * time the arena grows to that size.
+   * @param x: The integer to store in the Node.
+   * @return: A Node with the input value and all its pointers
+   * set to null.
+   */
+  private Node newNode(int x) {
+    if (arenaUsed == arena.length) {
+      arena = Arrays.copyOf(arena, Math.max(4, arena.length * 2));
+    }
+    Node node = arena[arenaUsed];
+    if (node == null) {
+      node = new Node(x);
+      arena[arenaUsed] = node;
+    } else {
+      node.datum.set(x, 1);
+      node.next = null;
+      node.down = null;
+    }
+    arenaUsed++;
+    return node;
   }
 
   /**
@@ -86,21 +224,21 @@ class MatrixList {
     if (curr == null && i == 0 && j == 0) {
       /* If there is no element in matrix, add it
        * and assign curr reference to it */
-      Node newItem = new Node(x);
+      Node newItem = newNode(x);
       rows[0] = newItem;
       curr = newItem;
     } else if (toI == i + 1 && toJ == 0) {
       /* If we are starting a new row, need to do special
        * handling to reassign itemAbove and curr */
       itemAbove = rows[i]; // used to assign Node.down pointer
-      Node newItem = new Node(x);
+      Node newItem = newNode(x);
       curr = newItem;
       itemAbove.down = newItem;
       rows[toI] = newItem; // header points to new item
       i++;
       j = 0;
     } else {
-      Node newItem = new Node(x);
+      Node newItem = newNode(x);
       curr.next = newItem;
       curr = newItem;
       j++;
@@ -115,7 +253,7 @@ class MatrixList {
    * Prints the matrix to out, delimited by spaces.
    */
   void printContents() {
-    for (int i = 0; i < rows.length; i++) {
+    for (int i = 0; i < maxDimens; i++) {
       Node x = rows[i];
       while (x != null) {
         System.out.print(x.datum);
@@ -128,43 +266,41 @@ class MatrixList {
 
   /**
    * Driver method for calculating the determinant of the matrix currently
-   * in memory. Will call methods that swap the first row if need be,
+   * in memory. Will call methods that choose a pivot row for every
+   * column and swap it onto the diagonal if need be,
    * convert the matrix to row echelon via matrix reduction, and
    * calculates the determinant by forming the product of the elements
    * in the diagonal.
    * @return: The int value of the determinant of the matrix
+   * @throws ArithmeticException if an entry or the determinant
+   * outgrows an int during elimination
    */
   int calculateDeterminant() {
     int rowSwappedCorrection = 1;
-    /* If the first item in the first row is 0, must swap the rows */
-    if (rows[0].datum.equalsZero()) {
-      int rIndex = 0;
-      while (rIndex < rows.length && rows[rIndex].datum.equalsZero()) {
-        rIndex++;
-      }
-      if (rIndex == 0 || rIndex >= rows.length) {
-        return 0;
-      } else {
-        swapFirstRowWithRowAt(rIndex);
-        // Adjust negative sign of final answer, since row was swapped
-        rowSwappedCorrection = -1;
-        System.out.println("Swapped rows: 1 and " + (rIndex + 1));
-      }
-    }
+    maxBitLength = 0;
     /* Convert the MatrixList to row echelon form */
     Node currDiag = rows[0];
     Node currSubRowElementStart;
+    int diagIndex = 0;
     while (currDiag != null) {
       // Iterate down the diagonal until we fall off the matrix
-      if (currDiag.datum.equalsZero()) {
-        // Early out, since the product of the diagonal will also be 0
+      Node pivot = choosePivot(currDiag);
+      if (pivot == null) {
+        // Early out, the column has no non-zero entry left to pivot on
         return 0;
       }
+      if (pivot != currDiag) {
+        int pivotIndex = swapRowsFrom(currDiag, pivot) + diagIndex;
+        // Adjust negative sign of final answer, since row was swapped
+        rowSwappedCorrection = -rowSwappedCorrection;
+        System.out.println("Swapped rows: " + (diagIndex + 1) + " and " +
+                (pivotIndex + 1));
+      }
       Node currDiagRowElement = currDiag;
       currSubRowElementStart = currDiag.down;
       while (currSubRowElementStart != null) {
         // multFactor = quotient of start of row and the reference row
-        Fraction multFactor = currSubRowElementStart.datum.div(
+        multFactor.setQuotient(currSubRowElementStart.datum,
                 currDiagRowElement.datum);
         if (!multFactor.equalsZero()) {
           Node currSubRowElement = currSubRowElementStart;
@@ -172,8 +308,10 @@ class MatrixList {
            * the product of the corresponding value in the reference
            * row and multFactor */
           while (currSubRowElement != null) {
-            currSubRowElement.datum = currSubRowElement.datum.sub(
-                    multFactor.mult(currDiagRowElement.datum));
+            product.setProduct(multFactor, currDiagRowElement.datum);
+            currSubRowElement.datum.subInPlace(product);
+            maxBitLength = Math.max(maxBitLength,
+                    currSubRowElement.datum.bitLength());
             currSubRowElement = currSubRowElement.next;
             currDiagRowElement = currDiagRowElement.next;
           }
@@ -186,8 +324,9 @@ class MatrixList {
       if (currDiag != null) {
         currDiag = currDiag.next;
       }
+      diagIndex++;
     }
-    return calcDiagonal() * rowSwappedCorrection;
+    return Math.multiplyExact(calcDiagonal(), rowSwappedCorrection);
   }
 
   /**
@@ -198,56 +337,78 @@ class MatrixList {
    * @return: The product of the diagonal.
    */
   private int calcDiagonal() {
-    Fraction result;
+    Fraction result = diagProduct;
     Node currEchelon = rows[0];
-    result = currEchelon.datum;
+    result.set(1, 1);
+    result.multInPlace(currEchelon.datum);
     while (currEchelon != null) {
       // Multiply until we fall off the matrix
       currEchelon = currEchelon.down;
       if (currEchelon != null) {
         currEchelon = currEchelon.next;
-        result = result.mult(currEchelon.datum);
+        result.multInPlace(currEchelon.datum);
       }
     }
     return result.toInt();
   }
 
   /**
-   * Method which swaps the first row with the desired row.
-   * This method is called when the first row contains a
-   * "0" at the first position and needs to be swapped with
-   * a row that does has a non-zero value in its first column.
-   * @param rowToSwap: The index of the row we would like to
-   *                 swap with the first one.
-   */
-  private void swapFirstRowWithRowAt(int rowToSwap) {
-    Node zerothTemp = rows[0]; // select first row
-    Node temp = rows[rowToSwap]; // select row x
-    if (rowToSwap == 1) {
-      while (temp != null) {
-        // swap row down-pointers
-        zerothTemp.down = temp.down;
-        temp.down = zerothTemp;
-        temp = temp.next; // advance to right
-        zerothTemp = zerothTemp.next; // advance to right
+   * Chooses the pivot for the column of the given diagonal Node,
+   * among the entries on or below the diagonal, according to the
+   * pivot strategy. Ties go to the row nearest the diagonal.
+   * @param diag: The Node on the diagonal of the current column
+   * @return: The Node holding the chosen pivot, or null if every
+   * candidate entry is 0.
+   */
+  private Node choosePivot(Node diag) {
+    if (pivotStrategy == PivotStrategy.FIRST_NONZERO &&
+            !diag.datum.equalsZero()) {
+      return diag;
+    }
+    Node best = null;
+    for (Node x = diag; x != null; x = x.down) {
+      if (x.datum.equalsZero()) {
+        continue;
       }
-    } else {
-      // must also reassign down pointers from row above
-      Node aboveTemp = rows[rowToSwap - 1];
-      while (temp != null) {
-        // swap down pointers
-        aboveTemp.down = zerothTemp;
-        Node belowZeroth = zerothTemp.down;
-        zerothTemp.down = temp.down;
-        temp.down = belowZeroth;
-        temp = temp.next;
-        zerothTemp = zerothTemp.next; // advance to right
-        aboveTemp = aboveTemp.next; // advance to right
+      if (best == null) {
+        best = x;
+        if (pivotStrategy == PivotStrategy.FIRST_NONZERO) {
+          break;
+        }
+      } else if (pivotStrategy == PivotStrategy.SMALLEST_ABS) {
+        if (x.datum.compareAbs(best.datum) < 0) {
+          best = x;
+        }
+      } else if (x.datum.bitLength() < best.datum.bitLength()) {
+        best = x;
       }
     }
-    // update pointers in row array
-    Node anchor = rows[rowToSwap];
-    rows[rowToSwap] = rows[0];
-    rows[0] = anchor;
+    return best;
+  }
+
+  /**
+   * Method which swaps the row of the diagonal Node with the row of
+   * the pivot Node, which must lie below it in the same column. Only
+   * the entries from that column rightwards are swapped, since the
+   * entries to the left are 0 in both rows. The Fractions are
+   * exchanged between the Nodes, so the links of the grid stay as
+   * they are.
+   * @param diag: The Node on the diagonal of the current column
+   * @param pivot: The Node holding the chosen pivot
+   * @return: The number of rows between the two rows.
+   */
+  private int swapRowsFrom(Node diag, Node pivot) {
+    int distance = 0;
+    for (Node x = diag; x != pivot; x = x.down) {
+      distance++;
+    }
+    while (diag != null) {
+      Fraction temp = diag.datum;
+      diag.datum = pivot.datum;
+      pivot.datum = temp;
+      diag = diag.next; // advance to right
+      pivot = pivot.next; // advance to right
+    }
+    return distance;
   }
 }
\ No newline at end of file
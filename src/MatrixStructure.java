@@ -0,0 +1,214 @@
+import java.util.Arrays;
+
+/**
+ * Records the structure of a matrix while it is being parsed, at a
+ * constant cost per entry, so that matrices with a known structure
+ * can skip the full elimination:
+ * ***Triangular (and so diagonal) matrices: product of the diagonal
+ * ***Permutation matrices: the sign of the permutation
+ * ***Block-diagonal matrices: product of the determinants of
+ * the blocks, which are independent of one another
+ * It also keeps the density and the largest magnitude of the entries,
+ * which EngineSelector uses to choose how to calculate the rest.
+ * Expects reset to be called with the order of every new matrix and
+ * record to be called with every entry of it.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class MatrixStructure {
+
+  private int order;
+  private boolean upper;
+  private boolean lower;
+  private boolean permutation;
+  private int ones;
+  private int[] permuted; // column of the 1 in each row
+  private boolean[] columnHit;
+  private int[] spanEnd; // furthest index linked to each index
+  private int[] blockStarts;
+  private int blocks;
+  private int nonZeros;
+  private long maxAbs;
+
+  /**
+   * Constructor for the MatrixStructure.
+   */
+  MatrixStructure() {
+    permuted = new int[0];
+    columnHit = new boolean[0];
+    spanEnd = new int[0];
+    blockStarts = new int[1];
+  }
+
+  /**
+   * Primes the MatrixStructure for a new matrix of the given order.
+   * @param n: The order of the next matrix
+   */
+  void reset(int n) {
+    if (n > spanEnd.length) {
+      permuted = new int[n];
+      columnHit = new boolean[n];
+      spanEnd = new int[n];
+      blockStarts = new int[n + 1];
+    }
+    order = n;
+    upper = true;
+    lower = true;
+    permutation = true;
+    ones = 0;
+    blocks = 0;
+    nonZeros = 0;
+    maxAbs = 0;
+    Arrays.fill(columnHit, 0, n, false);
+    Arrays.fill(spanEnd, 0, n, -1);
+  }
+
+  /**
+   * Records an entry of the matrix.
+   * @param x: The value of the entry
+   * @param row: The row of the entry
+   * @param col: The column of the entry
+   */
+  void record(int x, int row, int col) {
+    if (x == 0) {
+      return;
+    }
+    nonZeros++;
+    maxAbs = Math.max(maxAbs, Math.abs((long) x));
+    if (row > col) {
+      upper = false;
+    } else if (row < col) {
+      lower = false;
+    }
+    if (x != 1 || columnHit[col] || ones != row) {
+      // Not a 1, a second 1 in this column, or not exactly one 1
+      // in each of the rows so far
+      permutation = false;
+    } else {
+      permuted[row] = col;
+      columnHit[col] = true;
+      ones++;
+    }
+    // Any block must contain both the row and the column index
+    int lo = Math.min(row, col);
+    int hi = Math.max(row, col);
+    if (hi > spanEnd[lo]) {
+      spanEnd[lo] = hi;
+    }
+  }
+
+  /**
+   * @return: The order of the matrix
+   */
+  int getOrder() {
+    return order;
+  }
+
+  /**
+   * @return: The share of entries that are not 0, between 0 and 1.
+   */
+  double density() {
+    return order == 0 ? 0 : (double) nonZeros / ((long) order * order);
+  }
+
+  /**
+   * @return: The largest absolute value of any entry.
+   */
+  long maxAbs() {
+    return maxAbs;
+  }
+
+  /**
+   * @return: True if every entry below or every entry above the
+   * diagonal is 0.
+   */
+  boolean isTriangular() {
+    return upper || lower;
+  }
+
+  /**
+   * @return: True if every entry below the diagonal is 0.
+   */
+  boolean isUpperTriangular() {
+    return upper;
+  }
+
+  /**
+   * @return: True if every entry off the diagonal is 0.
+   */
+  boolean isDiagonal() {
+    return upper && lower;
+  }
+
+  /**
+   * @return: True if the matrix holds exactly one 1 in every row and
+   * column and 0 everywhere else.
+   */
+  boolean isPermutation() {
+    return permutation && ones == order;
+  }
+
+  /**
+   * Calculates the determinant of a permutation matrix, the sign of
+   * the permutation, by counting its cycles.
+   * @return: 1 for an even permutation, -1 for an odd one
+   */
+  int permutationSign() {
+    // Reuse columnHit to mark the visited indices
+    Arrays.fill(columnHit, 0, order, false);
+    int cycles = 0;
+    for (int start = 0; start < order; start++) {
+      if (!columnHit[start]) {
+        cycles++;
+        for (int k = start; !columnHit[k]; k = permuted[k]) {
+          columnHit[k] = true;
+        }
+      }
+    }
+    return (order - cycles) % 2 == 0 ? 1 : -1;
+  }
+
+  /**
+   * Splits the matrix into the smallest blocks along the diagonal
+   * such that every non-zero entry lies within a block.
+   * @return: The number of blocks
+   */
+  int findBlocks() {
+    blocks = 0;
+    int start = 0;
+    int reach = -1;
+    for (int k = 0; k < order; k++) {
+      reach = Math.max(reach, spanEnd[k]);
+      if (reach <= k) {
+        // Nothing links the indices up to k with those after it
+        blockStarts[blocks++] = start;
+        start = k + 1;
+      }
+    }
+    blockStarts[blocks] = order;
+    return blocks;
+  }
+
+  /**
+   * @return: The number of blocks found by the last call to findBlocks
+   */
+  int blockCount() {
+    return blocks;
+  }
+
+  /**
+   * @param b: The index of the block, as found by findBlocks
+   * @return: The first row and column of the block
+   */
+  int blockStart(int b) {
+    return blockStarts[b];
+  }
+
+  /**
+   * @param b: The index of the block, as found by findBlocks
+   * @return: One past the last row and column of the block
+   */
+  int blockEnd(int b) {
+    return blockStarts[b + 1];
+  }
+}
@@ -0,0 +1,251 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * A fast, probabilistic pre-filter for singular matrices. Computes the
+ * determinant of the matrix modulo one or two random 61-bit primes
+ * using only long arithmetic. If any of these is non-zero the matrix
+ * is certainly not singular and goes on to the exact engine. If all of
+ * them are zero the matrix is almost certainly singular; a cheap exact
+ * check (a zero row or column, or two proportional rows or columns)
+ * then confirms it, otherwise the exact engine decides after all.
+ * The filter therefore never changes a result, it only skips the
+ * rational elimination for matrices it can prove to be singular.
+ *
+ * Products modulo the prime are formed with Montgomery multiplication,
+ * which needs no 128-bit division.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class ModularFilter {
+
+  private long[] primes;
+  private long[] negInverses; // -p^-1 mod 2^64 for each prime
+  private long[] rSquared; // 2^128 mod p for each prime
+  private int[] entries;
+  private long[] residues;
+  private RunMetrics metrics;
+
+  /**
+   * Constructor for the ModularFilter.
+   * @param primes: The primes to compute the determinant modulo,
+   *              each below 2^62. Usually from randomPrimes.
+   * @param metrics: The metrics that the outcome of every check
+   *               is recorded in.
+   */
+  ModularFilter(long[] primes, RunMetrics metrics) {
+    this.primes = primes;
+    this.metrics = metrics;
+    negInverses = new long[primes.length];
+    rSquared = new long[primes.length];
+    for (int k = 0; k < primes.length; k++) {
+      long p = primes[k];
+      long inv = p; // correct to 3 bits for odd p, doubles each step
+      for (int step = 0; step < 5; step++) {
+        inv *= 2 - p * inv;
+      }
+      negInverses[k] = -inv;
+      rSquared[k] = BigInteger.ONE.shiftLeft(128)
+              .mod(BigInteger.valueOf(p)).longValue();
+    }
+    entries = new int[0];
+    residues = new long[0];
+  }
+
+  /**
+   * Picks random 61-bit primes for the filter. Random primes keep
+   * inputs from being built to fool the filter on purpose.
+   * @param count: The number of primes to pick
+   * @return: The primes
+   */
+  static long[] randomPrimes(int count) {
+    SecureRandom random = new SecureRandom();
+    long[] primes = new long[count];
+    for (int k = 0; k < count; k++) {
+      primes[k] = BigInteger.probablePrime(61, random).longValue();
+    }
+    return primes;
+  }
+
+  /**
+   * Checks whether the matrix can be proven to be singular without
+   * running the exact engine. Must be called before the matrix is
+   * reduced.
+   * @param ml: The complete matrix to check
+   * @return: True if the matrix is singular, false if the exact
+   * engine must calculate the determinant.
+   */
+  boolean confirmsSingular(MatrixList ml) {
+    long startTime = System.nanoTime();
+    int n = ml.getOrder();
+    if (entries.length < n * n) {
+      entries = new int[n * n];
+      residues = new long[n * n];
+    }
+    ml.copyEntries(entries);
+    boolean zeroMod = true;
+    for (int k = 0; k < primes.length && zeroMod; k++) {
+      zeroMod = detModIsZero(n, k);
+    }
+    boolean confirmed = zeroMod && hasDependentLine(n);
+    metrics.recordFilter(zeroMod, confirmed,
+            System.nanoTime() - startTime);
+    return confirmed;
+  }
+
+  /**
+   * Reduces a copy of the entries modulo the k-th prime to row echelon
+   * form and checks whether the diagonal contains a 0.
+   * @param n: The order of the matrix
+   * @param k: The index of the prime
+   * @return: True if the determinant is 0 modulo the prime
+   */
+  private boolean detModIsZero(int n, int k) {
+    long p = primes[k];
+    long pNeg = negInverses[k];
+    long[] a = residues;
+    for (int e = 0; e < n * n; e++) {
+      long x = entries[e] % p;
+      // Convert into Montgomery form, x * 2^64 mod p
+      a[e] = montMul(x < 0 ? x + p : x, rSquared[k], p, pNeg);
+    }
+    long one = montMul(1, rSquared[k], p, pNeg);
+    for (int c = 0; c < n; c++) {
+      int pivot = c;
+      while (pivot < n && a[pivot * n + c] == 0) {
+        pivot++;
+      }
+      if (pivot == n) {
+        return true;
+      }
+      if (pivot != c) {
+        // The sign does not matter for a test against 0
+        for (int col = c; col < n; col++) {
+          long temp = a[c * n + col];
+          a[c * n + col] = a[pivot * n + col];
+          a[pivot * n + col] = temp;
+        }
+      }
+      long inverse = montPow(a[c * n + c], p - 2, one, p, pNeg);
+      for (int row = c + 1; row < n; row++) {
+        long factor = montMul(a[row * n + c], inverse, p, pNeg);
+        if (factor == 0) {
+          continue;
+        }
+        for (int col = c; col < n; col++) {
+          long v = a[row * n + col] -
+                  montMul(factor, a[c * n + col], p, pNeg);
+          a[row * n + col] = v < 0 ? v + p : v;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Montgomery product of a and b, both in [0, p): a * b / 2^64 mod p.
+   * @param a: The first factor
+   * @param b: The second factor
+   * @param p: The odd modulus, below 2^62
+   * @param pNeg: -p^-1 mod 2^64
+   * @return: The product in [0, p)
+   */
+  private static long montMul(long a, long b, long p, long pNeg) {
+    long lo = a * b;
+    long hi = multiplyHigh(a, b);
+    long m = lo * pNeg;
+    // Unsigned high half of m * p
+    long mpHi = multiplyHigh(m, p) + ((m >> 63) & p);
+    // lo + low half of m * p is 0 mod 2^64, so it carries unless lo is 0
+    long t = hi + mpHi + (lo != 0 ? 1 : 0);
+    return t >= p ? t - p : t;
+  }
+
+  /**
+   * The high half of the signed 128-bit product of x and y. Same as
+   * Math.multiplyHigh, which is not available on Java 8.
+   * @param x: The first factor
+   * @param y: The second factor
+   * @return: The upper 64 bits of x * y
+   */
+  private static long multiplyHigh(long x, long y) {
+    long x1 = x >> 32;
+    long x2 = x & 0xFFFFFFFFL;
+    long y1 = y >> 32;
+    long y2 = y & 0xFFFFFFFFL;
+    long z2 = x2 * y2;
+    long t = x1 * y2 + (z2 >>> 32);
+    long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+    return x1 * y1 + (t >> 32) + (z1 >> 32);
+  }
+
+  /**
+   * Raises a number in Montgomery form to a power by squaring.
+   * @param base: The base in Montgomery form
+   * @param exp: The non-negative exponent
+   * @param one: 1 in Montgomery form
+   * @param p: The odd modulus
+   * @param pNeg: -p^-1 mod 2^64
+   * @return: The power in Montgomery form
+   */
+  private static long montPow(long base, long exp, long one,
+                              long p, long pNeg) {
+    long result = one;
+    while (exp > 0) {
+      if ((exp & 1) == 1) {
+        result = montMul(result, base, p, pNeg);
+      }
+      base = montMul(base, base, p, pNeg);
+      exp >>= 1;
+    }
+    return result;
+  }
+
+  /**
+   * Cheap exact check for singularity: looks for a zero row or
+   * column, or for two rows or two columns that are multiples of
+   * each other.
+   * @param n: The order of the matrix
+   * @return: True if such a line was found, which proves the matrix
+   * to be singular.
+   */
+  private boolean hasDependentLine(int n) {
+    for (int x = 0; x < n; x++) {
+      for (int y = x + 1; y < n; y++) {
+        if (proportional(x * n, y * n, 1, n) ||
+                proportional(x, y, n, n)) {
+          return true;
+        }
+      }
+    }
+    // A 1x1 matrix has no pair of lines to compare
+    return n == 1 && entries[0] == 0;
+  }
+
+  /**
+   * Checks whether two rows (or columns) are multiples of each other,
+   * which includes either of them being all 0.
+   * @param x: The offset of the first entry of the first line
+   * @param y: The offset of the first entry of the second line
+   * @param step: The distance between entries along a line
+   * @param n: The number of entries in a line
+   * @return: True if the lines are multiples of each other
+   */
+  private boolean proportional(int x, int y, int step, int n) {
+    long scaleX = 0; // the lines are proportional if y * scaleX == x * scaleY
+    long scaleY = 0;
+    for (int k = 0; k < n; k++) {
+      long vx = entries[x + k * step];
+      long vy = entries[y + k * step];
+      if (scaleX == 0 && scaleY == 0) {
+        if (vx != 0 || vy != 0) {
+          scaleX = vx;
+          scaleY = vy;
+        }
+      } else if (vy * scaleX != vx * scaleY) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,223 @@
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses the matrices of an input file on several threads. The input
+ * is first split at matrix boundaries by MatrixIndex, the segments are
+ * grouped into chunks, and each chunk is parsed by its own
+ * ReadMatrixAndCompute. The outputs of the chunks are written in
+ * input order, so the output file is identical to that of a
+ * sequential run, including where any errors are reported. The trace
+ * of every chunk is kept apart and printed with its output, so it
+ * comes out in input order as well.
+ *
+ * A run can also checkpoint its progress at chunk boundaries, so that
+ * a run that died can be resumed from the last checkpoint instead of
+ * from the start of the input.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class ParallelMatrixRunner {
+
+  private static final long CHUNK_BYTES = 1 << 20;
+
+  private Lab3 lab;
+  private int threads;
+  private boolean saveIndex;
+  private Checkpoint checkpoint; // null --> no checkpoints
+  private String outPath;
+  private FileChannel outChannel;
+  private long checkpointMillis;
+  private long lastCheckpoint;
+  private long startMatrices; // processed before this run
+
+  /**
+   * Constructor for the ParallelMatrixRunner.
+   * @param lab: The Lab3 whose settings every chunk is parsed with
+   * @param threads: The number of threads to parse the input with
+   * @param saveIndex: Whether the boundary index should be saved
+   *                 next to the input file
+   */
+  ParallelMatrixRunner(Lab3 lab, int threads, boolean saveIndex) {
+    this.lab = lab;
+    this.threads = threads;
+    this.saveIndex = saveIndex;
+  }
+
+  /**
+   * Parses every matrix of the input file and writes the output,
+   * in input order, to out.
+   * @param inPath: The path of the input file
+   * @param out: The output BufferedWriter which the output
+   *           will be written to.
+   * @throws IOException if the input could not be read or the
+   * output could not be written
+   */
+  void run(String inPath, BufferedWriter out) throws IOException {
+    run(MatrixIndex.loadOrScan(inPath, saveIndex), inPath, out);
+  }
+
+  /**
+   * Parses every matrix of the input file into the output file and
+   * checkpoints the progress periodically. Resuming truncates the
+   * output to the length it had at the last checkpoint, and carries
+   * on from the matrix that follows, so the output file ends up
+   * identical to that of an uninterrupted run, provided the settings
+   * of the Lab3 are the same as those the checkpoint was written with.
+   * A run that starts from the beginning removes any checkpoint left
+   * behind by an earlier run first, and the checkpoint is removed once
+   * the run is complete.
+   * @param inPath: The path of the input file
+   * @param outPath: The path of the output file
+   * @param intervalMillis: The least time between two checkpoints,
+   *                      0 to checkpoint after every chunk
+   * @param resume: Whether to resume from the last checkpoint, if any,
+   *              rather than start from the beginning
+   * @throws IOException if the input could not be read, the output
+   * or checkpoint could not be written, or the checkpoint does not
+   * match the input, output or settings
+   */
+  void run(String inPath, String outPath, long intervalMillis,
+           boolean resume) throws IOException {
+    Checkpoint start = resume ?
+            Checkpoint.load(outPath, inPath, lab.settings()) : null;
+    MatrixIndex index;
+    if (start == null) {
+      if (resume) {
+        System.out.println("No checkpoint found, starting from the beginning");
+      }
+      // Whatever an earlier run left does not describe this output
+      Checkpoint.delete(outPath);
+      checkpoint = new Checkpoint(inPath, lab.settings());
+      index = MatrixIndex.loadOrScan(inPath, saveIndex);
+    } else {
+      System.out.println("Resuming after " + start.matrices +
+              " matrices at byte " + start.inputOffset);
+      checkpoint = start;
+      index = MatrixIndex.scan(inPath, start.inputOffset);
+    }
+    startMatrices = checkpoint.matrices;
+    this.outPath = outPath;
+    checkpointMillis = intervalMillis;
+    lastCheckpoint = System.currentTimeMillis();
+    try (FileOutputStream fos = new FileOutputStream(outPath, start != null)) {
+      outChannel = fos.getChannel();
+      if (start != null) {
+        if (outChannel.size() < start.outputPosition) {
+          throw new IOException("Output " + outPath +
+                  " is shorter than at the checkpoint");
+        }
+        // Drop whatever was written after the checkpoint
+        outChannel.truncate(start.outputPosition);
+      }
+      BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fos));
+      run(index, inPath, out);
+      out.flush();
+    } finally {
+      checkpoint = null;
+    }
+    Checkpoint.delete(outPath);
+  }
+
+  /**
+   * Parses the segments of the index and writes their output,
+   * in input order, to out.
+   * @param index: The segments of the input file to parse
+   * @param inPath: The path of the input file
+   * @param out: The output BufferedWriter which the output
+   *           will be written to.
+   * @throws IOException if the input could not be read or the
+   * output could not be written
+   */
+  private void run(MatrixIndex index, String inPath, BufferedWriter out)
+          throws IOException {
+    int[] chunks = index.chunk(CHUNK_BYTES);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try (FileInputStream fis = new FileInputStream(inPath)) {
+      FileChannel channel = fis.getChannel();
+      // Bound the number of chunks in flight to limit memory use
+      ArrayDeque<Future<String>> inFlight = new ArrayDeque<>();
+      ArrayDeque<StringBuilder> traces = new ArrayDeque<>();
+      int window = threads * 4;
+      int written = 0; // chunks written to out so far
+      for (int c = 0; c + 1 < chunks.length; c++) {
+        final int from = chunks[c];
+        final int to = chunks[c + 1];
+        // The index only holds the segments since the start of this run
+        final long first = startMatrices + from;
+        final StringBuilder trace = new StringBuilder();
+        traces.add(trace);
+        inFlight.add(pool.submit(() ->
+            lab.parseSegment(index.read(channel, from, to), first, trace)));
+        if (inFlight.size() >= window) {
+          out.write(await(inFlight.poll()));
+          System.out.print(traces.poll());
+          written++;
+          checkpointIfDue(out, index, chunks[written]);
+        }
+      }
+      while (!inFlight.isEmpty()) {
+        out.write(await(inFlight.poll()));
+        System.out.print(traces.poll());
+        written++;
+        checkpointIfDue(out, index, chunks[written]);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Checkpoints the progress if the run is checkpointed and the
+   * interval has passed since the last checkpoint. The output is
+   * forced to disk first, so that it is never shorter than the
+   * checkpoint says.
+   * @param out: The output written so far
+   * @param index: The segments being parsed
+   * @param done: The number of segments of the index written to out
+   * @throws IOException if the output or checkpoint could not be
+   * written
+   */
+  private void checkpointIfDue(BufferedWriter out, MatrixIndex index,
+                               int done) throws IOException {
+    long now = System.currentTimeMillis();
+    if (checkpoint == null || done == index.size() ||
+            now - lastCheckpoint < checkpointMillis) {
+      return;
+    }
+    out.flush();
+    outChannel.force(false);
+    checkpoint.inputOffset = index.start(done);
+    // The index only holds the segments since the start of this run
+    checkpoint.matrices = startMatrices + done;
+    checkpoint.outputPosition = outChannel.position();
+    checkpoint.save(outPath);
+    lastCheckpoint = now;
+  }
+
+  /**
+   * Waits for a chunk to be parsed.
+   * @param chunk: The Future of the chunk's output
+   * @return: The output of the chunk
+   * @throws IOException if the chunk could not be parsed
+   */
+  private static String await(Future<String> chunk) throws IOException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while parsing", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not parse chunk", e.getCause());
+    }
+  }
+}
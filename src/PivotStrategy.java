@@ -0,0 +1,54 @@
+/**
+ * The strategies MatrixList can use to choose the pivot row for each
+ * column during elimination. Since all arithmetic is exact, the pivot
+ * does not affect the determinant, only how fast the numerators and
+ * denominators of the remaining entries grow.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+enum PivotStrategy {
+
+  /** Keeps the diagonal entry unless it is 0, then takes the first
+   * row below it with a non-zero entry in that column. */
+  FIRST_NONZERO("first-nonzero"),
+
+  /** Takes the row whose entry in the column has the smallest
+   * non-zero absolute value. */
+  SMALLEST_ABS("smallest-abs"),
+
+  /** Takes the row whose entry in the column has the fewest bits in
+   * its numerator and denominator combined. */
+  SMALLEST_BITLENGTH("smallest-bitlength");
+
+  private final String optionName;
+
+  /**
+   * Constructor for the PivotStrategy.
+   * @param optionName: The name used for the strategy on the
+   *                  command line.
+   */
+  PivotStrategy(String optionName) {
+    this.optionName = optionName;
+  }
+
+  /**
+   * Looks up a strategy by the name used on the command line.
+   * @param name: The command-line name of the strategy
+   * @return: The matching strategy, or null if there is none
+   */
+  static PivotStrategy fromOptionName(String name) {
+    for (PivotStrategy strategy : values()) {
+      if (strategy.optionName.equals(name)) {
+        return strategy;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return: The name used for the strategy on the command line
+   */
+  String optionName() {
+    return optionName;
+  }
+}
@@ -1,6 +1,10 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 /**
  * Handles the logic of every character that is loaded in from
  * the input. The character is checked for validity, i.e.
@@ -8,11 +12,27 @@ import java.io.IOException;
  * for purposes of generating a neat output file, which will display
  * the calculated determinant for each matrix, as well as any
  * errors that may have been encountered while parsing the file.
+ * The structure of every matrix is recorded while it is parsed, and
+ * an EngineSelector uses it to dispatch the matrix to the cheapest
+ * engine: triangular, permutation and block-diagonal matrices skip
+ * the full elimination entirely.
+ *
+ * With batching enabled, consecutive matrices of the same small order
+ * bypass the MatrixList altogether: their entries go straight into a
+ * MatrixBatch, and their output is held back until the batch is
+ * solved in one pass and the determinants can be filled in.
+ *
+ * Matrices are numbered from 1 in input order, counting malformed
+ * ones too, so that a traced engine choice can be matched with its
+ * matrix even when the input was parsed in several pieces.
  * @Author: Falko Noe
  * @Version: 1.0
  */
 class ReadMatrixAndCompute {
 
+  // Total size^3 of the blocks above which they are solved in parallel
+  private static final int PARALLEL_BLOCK_WORK = 1 << 14;
+
   private BufferedReader input;
   private BufferedWriter output;
   private MatrixList ml;
@@ -24,6 +44,23 @@ class ReadMatrixAndCompute {
   private boolean prevWasSpace;
   private boolean parsingInt;
   private int maxDimens;
+  private EngineSelector selector;
+  private RunMetrics metrics;
+  private ModularFilter filter;
+  private MatrixStructure structure;
+  private MatrixList[] blockLists;
+  private FloatingDeterminant floating;
+  private int[] original;
+  private BufferedWriter target;
+  private MatrixBatch batch;
+  private StringWriter held;
+  private BufferedWriter heldOutput;
+  private int[] valueMarks;
+  private char[] copyBuffer;
+  private boolean batching;
+  private long matrixNumber;
+  private boolean tracing;
+  private StringBuilder traceSink;
 
   /**
    * Constructor for this class. Instantiates all necessary variables,
@@ -38,6 +75,7 @@ class ReadMatrixAndCompute {
   ReadMatrixAndCompute(BufferedReader in, BufferedWriter out) {
     input = in;
     output = out;
+    target = out;
     currIntValue = 0;
     i = 0;
     j = 0;
@@ -46,6 +84,73 @@ class ReadMatrixAndCompute {
     prevWasSpace = true;
     parsingInt = true;
     maxDimens = 0;
+    selector = new EngineSelector(new EngineProfile(), null, true, false,
+            false);
+    metrics = new RunMetrics();
+    filter = null;
+    structure = new MatrixStructure();
+    blockLists = new MatrixList[0];
+    floating = new FloatingDeterminant();
+    original = new int[0];
+  }
+
+  /**
+   * Constructor for this class which also sets how the determinants
+   * are calculated and where their metrics are recorded.
+   * @param in: The BufferedReader that holds the input.
+   * @param out: The BufferedWriter that holds the output.
+   * @param engineSelector: The selector that dispatches every matrix
+   *                      to an engine. Must be told whether the
+   *                      pre-filter is available.
+   * @param runMetrics: The metrics that every calculated
+   *                  determinant is recorded in.
+   * @param filterPrimes: The primes for the singularity pre-filter,
+   *                    or null to never use it.
+   * @param batchSize: The number of matrices of order up to
+   *                 MatrixBatch.MAX_ORDER solved together, or 0 to
+   *                 solve every matrix on its own.
+   */
+  ReadMatrixAndCompute(BufferedReader in, BufferedWriter out,
+                       EngineSelector engineSelector, RunMetrics runMetrics,
+                       long[] filterPrimes, int batchSize) {
+    this(in, out);
+    selector = engineSelector;
+    metrics = runMetrics;
+    if (filterPrimes != null) {
+      filter = new ModularFilter(filterPrimes, runMetrics);
+    }
+    if (batchSize > 0) {
+      batch = new MatrixBatch(batchSize);
+      held = new StringWriter();
+      heldOutput = new BufferedWriter(held);
+      valueMarks = new int[batchSize];
+      copyBuffer = new char[0];
+    }
+  }
+
+  /**
+   * Traces the engine chosen for every matrix from now on. Nothing is
+   * traced, and no trace text is built, unless this is called.
+   * @param firstMatrix: The number of matrices in the input before
+   *                   the first one parsed here
+   * @param sink: Where the trace lines are appended, or null to print
+   *            them to stdout
+   */
+  void enableTrace(long firstMatrix, StringBuilder sink) {
+    tracing = true;
+    matrixNumber = firstMatrix;
+    traceSink = sink;
+  }
+
+  /**
+   * Solves the batch still pending at the end of the input and writes
+   * the output held back for it. Must be called once the input has
+   * been read in full.
+   */
+  void finish() {
+    if (output != target) {
+      flushBatch();
+    }
   }
 
   /**
@@ -115,7 +220,27 @@ class ReadMatrixAndCompute {
     } else if ((char) i == '\r' || (char) i == '\n') {
       // If EOL is reached without errors, instantiate matrix with order
       maxDimens = currIntValue;
-      ml = new MatrixList(maxDimens);
+      batching = batch != null && maxDimens >= 1 &&
+              maxDimens <= MatrixBatch.MAX_ORDER;
+      if (output != target && (!batching || maxDimens != batch.order() ||
+              batch.isFull())) {
+        flushBatch(); // the run of same-order matrices has ended
+      }
+      matrixNumber++;
+      if (batching) {
+        if (output == target) {
+          batch.reset(maxDimens);
+          output = heldOutput;
+        }
+        batch.begin();
+      } else if (ml == null) {
+        ml = new MatrixList(maxDimens);
+      } else {
+        ml.reset(maxDimens); // reuse the node arena of earlier matrices
+      }
+      if (!batching) {
+        structure.reset(maxDimens);
+      }
       parsingDimensions = false;
       parsingInt = false;
       currIntValue = 0;
@@ -139,15 +264,18 @@ class ReadMatrixAndCompute {
    * @param i
    */
   private void handleDimensionsError(String errMsg, int i) {
+    matrixNumber++;
     try {
       // Print rest of the characters to out for more informative err msg
       int next;
       while ((next = input.read()) != -1 &&
-              ((char) next != '\r' || (char) next == '\n')) {
+              (char) next != '\r' && (char) next != '\n') {
         output.write(next);
       }
       if ((char) next == '\r') {
-        output.write(input.read()); // Speical Windows EOL
+        output.write(input.read()); // Special Windows EOL
+      } else if ((char) next == '\n') {
+        output.write(next);
       }
       // Write the error message to out
       output.write("Encountered error during matrix order parsing --> " +
@@ -174,11 +302,19 @@ class ReadMatrixAndCompute {
       try {
         // Start formatting output for calculated value
         output.write("Calculated value: ");
-        long startTime = System.nanoTime();
-        // Calc the determinant of the input matrix
-        output.write(ml.calculateDeterminant() + "");
-        System.out.println("Time elapsed: " +
-                (System.nanoTime() - startTime));
+        if (batching) {
+          // The value is filled in once the batch has been solved
+          output.flush();
+          valueMarks[batch.size()] = held.getBuffer().length();
+          batch.commit();
+          if (tracing) {
+            trace("Matrix " + matrixNumber + ": Engine: batch for order " +
+                    maxDimens + " because order " + maxDimens +
+                    " <= batch.maxOrder " + MatrixBatch.MAX_ORDER);
+          }
+        } else {
+          output.write(computeDeterminant());
+        }
         output.newLine();
         output.newLine();
       } catch (IOException e) {
@@ -195,6 +331,201 @@ class ReadMatrixAndCompute {
     j = 0; // At end of line
   }
 
+  /**
+   * Calculates the determinant of the complete matrix with the engine
+   * the EngineSelector picks for it: the product of the diagonal for
+   * triangular matrices, the sign for permutation matrices, the
+   * product of the blocks' determinants for block-diagonal ones, and
+   * otherwise the floating engine, or the exact engine behind the
+   * pre-filter or on its own. Traces the choice if asked to. If the
+   * engine overflows an int, the determinant is calculated again from
+   * the original entries with BigDeterminant, so a wrapped value is
+   * never printed.
+   * @return: The determinant of the matrix, in decimal
+   */
+  private String computeDeterminant() {
+    EngineSelector.Engine engine = selector.select(structure);
+    if (tracing) {
+      trace("Matrix " + matrixNumber + ": " + selector.trace(structure));
+    }
+    metrics.recordEngine(selector.engineName());
+    int n = ml.getOrder();
+    if (original.length < n * n) {
+      original = new int[n * n];
+    }
+    // The exact engines reduce ml in place, keep the entries first
+    boolean reducesInPlace = engine == EngineSelector.Engine.EXACT ||
+            engine == EngineSelector.Engine.FILTERED_EXACT;
+    if (reducesInPlace) {
+      ml.copyEntries(original);
+    }
+    try {
+      return Integer.toString(runEngine(engine));
+    } catch (ArithmeticException e) {
+      if (!reducesInPlace) {
+        ml.copyEntries(original);
+      }
+      System.out.println("Overflowed an int, recomputing with BigInteger");
+      metrics.recordOverflow();
+      return BigDeterminant.determinant(original, n).toString();
+    }
+  }
+
+  /**
+   * Calculates the determinant of the complete matrix with the given
+   * engine.
+   * @param engine: The engine chosen by the EngineSelector
+   * @return: The determinant of the matrix
+   * @throws ArithmeticException if the engine overflows an int
+   */
+  private int runEngine(EngineSelector.Engine engine) {
+    switch (engine) {
+      case TRIANGULAR:
+        return ml.diagonalProduct();
+      case PERMUTATION:
+        return structure.permutationSign();
+      case BLOCK_DIAGONAL:
+        return blockDiagonalDeterminant(structure.blockCount());
+      case FLOATING:
+        return floating.determinant(ml);
+      case FILTERED_EXACT:
+        if (filter.confirmsSingular(ml)) {
+          // Proven singular, no need for the exact engine
+          return 0;
+        }
+        ml.setPivotStrategy(selector.pivotStrategy());
+        return exactDeterminant(ml, false);
+      default:
+        ml.setPivotStrategy(selector.pivotStrategy());
+        return exactDeterminant(ml, false);
+    }
+  }
+
+  /**
+   * Calculates the determinant of a block-diagonal matrix as the
+   * product of the determinants of its blocks. The blocks are
+   * independent, so large enough ones are solved in parallel.
+   * @param blocks: The number of blocks found by the MatrixStructure
+   * @return: The determinant of the matrix
+   * @throws ArithmeticException if a block or the product overflows
+   * an int
+   */
+  private int blockDiagonalDeterminant(int blocks) {
+    if (blockLists.length < blocks) {
+      int old = blockLists.length;
+      blockLists = Arrays.copyOf(blockLists, blocks);
+      for (int b = old; b < blocks; b++) {
+        blockLists[b] = new MatrixList(0);
+      }
+    }
+    long work = 0;
+    for (int b = 0; b < blocks; b++) {
+      MatrixList block = blockLists[b];
+      ml.copyBlockInto(block, structure.blockStart(b),
+              structure.blockEnd(b));
+      block.setPivotStrategy(selector.pivotStrategy());
+      long size = block.getOrder();
+      work += size * size * size;
+    }
+    IntStream dets = IntStream.range(0, blocks)
+            .map(b -> exactDeterminant(blockLists[b], true));
+    if (work >= PARALLEL_BLOCK_WORK) {
+      dets = dets.parallel();
+    }
+    return dets.reduce(1, Math::multiplyExact);
+  }
+
+  /**
+   * Solves the pending batch and writes the output held back for it
+   * to the real output, with the determinants filled in at the marks
+   * left for them. Output goes straight to the real output again
+   * afterwards.
+   */
+  private void flushBatch() {
+    output = target;
+    try {
+      heldOutput.flush();
+      StringBuffer text = held.getBuffer();
+      int count = batch.size();
+      long startTime = System.nanoTime();
+      int[] dets = batch.determinants();
+      long elapsed = System.nanoTime() - startTime;
+      if (count > 0) {
+        metrics.recordBatch(count, elapsed);
+      }
+      if (copyBuffer.length < text.length()) {
+        copyBuffer = new char[text.length()];
+      }
+      text.getChars(0, text.length(), copyBuffer, 0);
+      int from = 0;
+      for (int m = 0; m < count; m++) {
+        output.write(copyBuffer, from, valueMarks[m] - from);
+        output.write(batchDeterminant(m, dets[m]));
+        from = valueMarks[m];
+      }
+      output.write(copyBuffer, from, text.length() - from);
+      text.setLength(0);
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+    batch.reset(batch.order());
+  }
+
+  /**
+   * Gives the determinant of a matrix of the batch, calculated again
+   * exactly if the batch's int arithmetic may have wrapped it.
+   * @param m: The index of the matrix in the batch
+   * @param det: The determinant the batch calculated
+   * @return: The determinant of the matrix, in decimal
+   */
+  private String batchDeterminant(int m, int det) {
+    if (!batch.mayOverflow(m)) {
+      return Integer.toString(det);
+    }
+    BigInteger exact = batch.exactDeterminant(m);
+    if (exact.bitLength() > 31) {
+      metrics.recordOverflow();
+    }
+    return exact.toString();
+  }
+
+  /**
+   * Writes a line of the trace to where it was asked for.
+   * @param line: The line, without line separator
+   */
+  private void trace(String line) {
+    if (traceSink == null) {
+      System.out.println(line);
+    } else {
+      traceSink.append(line).append('\n');
+    }
+  }
+
+  /**
+   * Calculates the determinant with the exact engine and records
+   * its metrics.
+   * @param matrix: The complete matrix
+   * @param block: Whether the matrix is one block of a block-diagonal
+   *             matrix, whose metrics are kept apart from those of
+   *             whole matrices
+   * @return: The determinant of the matrix
+   */
+  private int exactDeterminant(MatrixList matrix, boolean block) {
+    long startTime = System.nanoTime();
+    // Calc the determinant of the input matrix
+    int det = matrix.calculateDeterminant();
+    long elapsed = System.nanoTime() - startTime;
+    System.out.println("Time elapsed: " + elapsed);
+    System.out.println("Max entry bit length: " +
+            matrix.getMaxBitLength());
+    if (block) {
+      metrics.recordBlock(elapsed);
+    } else {
+      metrics.recordDeterminant(elapsed, matrix.getMaxBitLength());
+    }
+    return det;
+  }
+
   /**
    * Updates the current integer value..
    * @param i: The integer value read in from stdin.
@@ -284,10 +615,12 @@ class ReadMatrixAndCompute {
    * is encountered.
    */
   private void insertValueIntoMatrix() {
-    if (charIsNegative) {
-      ml.add(0 - currIntValue, i, j);
+    int value = charIsNegative ? 0 - currIntValue : currIntValue;
+    if (batching) {
+      batch.set(value, i, j);
     } else {
-      ml.add(currIntValue, i, j);
+      ml.add(value, i, j);
+      structure.record(value, i, j);
     }
     // Reset instance variables involved in
     prevWasSpace = true;
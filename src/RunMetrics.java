@@ -0,0 +1,222 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects metrics over all the determinants calculated during a run,
+ * so that different settings can be compared on the same data. May be
+ * shared by several threads, and sent from a worker to its coordinator
+ * to be added up there.
+ * @Author: Falko Noe
+ * @Version: 1.0
+ */
+class RunMetrics {
+
+  private long matrices;
+  private long totalNanos;
+  private int maxBitLength;
+  private long bitLengthSum;
+  private long filterChecks;
+  private long filterZeroMod;
+  private long filterShortCircuits;
+  private long filterNanos;
+  private long overflows;
+  private long blocks;
+  private long blockNanos;
+  private long batchNanos;
+  // A count per engine, kept in an array so that counting allocates
+  // nothing
+  private Map<String, long[]> engines = new TreeMap<>();
+
+  /**
+   * Records one calculated determinant.
+   * @param nanos: The time the calculation took
+   * @param bitLength: The largest bit length of any numerator or
+   *                 denominator produced during elimination
+   */
+  synchronized void recordDeterminant(long nanos, int bitLength) {
+    matrices++;
+    totalNanos += nanos;
+    bitLengthSum += bitLength;
+    if (bitLength > maxBitLength) {
+      maxBitLength = bitLength;
+    }
+  }
+
+  /**
+   * Records one check of the modular pre-filter.
+   * @param zeroMod: Whether the determinant was 0 modulo every prime
+   * @param confirmed: Whether the matrix was confirmed to be singular,
+   *                 so that the exact engine was skipped
+   * @param nanos: The time the check took
+   */
+  synchronized void recordFilter(boolean zeroMod, boolean confirmed,
+                                 long nanos) {
+    filterChecks++;
+    filterNanos += nanos;
+    if (zeroMod) {
+      filterZeroMod++;
+    }
+    if (confirmed) {
+      filterShortCircuits++;
+    }
+  }
+
+  /**
+   * Records one block of a block-diagonal matrix solved by the exact
+   * engine. Kept apart from recordDeterminant, so that those metrics
+   * only describe whole matrices.
+   * @param nanos: The time the calculation took
+   */
+  synchronized void recordBlock(long nanos) {
+    blocks++;
+    blockNanos += nanos;
+  }
+
+  /**
+   * Records one matrix whose engine overflowed an int, so that its
+   * determinant had to be calculated again with BigInteger.
+   */
+  synchronized void recordOverflow() {
+    overflows++;
+  }
+
+  /**
+   * Records the engine a matrix was dispatched to.
+   * @param engine: The name of the engine, as given by EngineSelector
+   */
+  synchronized void recordEngine(String engine) {
+    recordEngine(engine, 1);
+  }
+
+  /**
+   * Records several matrices dispatched to the same engine at once.
+   * @param engine: The name of the engine
+   * @param count: The number of matrices
+   */
+  synchronized void recordEngine(String engine, long count) {
+    engines.computeIfAbsent(engine, name -> new long[1])[0] += count;
+  }
+
+  /**
+   * Records a batch of matrices solved in one pass.
+   * @param count: The number of matrices in the batch
+   * @param nanos: The time the pass took
+   */
+  synchronized void recordBatch(long count, long nanos) {
+    recordEngine("batch", count);
+    batchNanos += nanos;
+  }
+
+  /**
+   * Adds the metrics collected elsewhere, by a worker, to these.
+   * @param other: The metrics to add, not shared with any other thread
+   */
+  synchronized void add(RunMetrics other) {
+    matrices += other.matrices;
+    totalNanos += other.totalNanos;
+    maxBitLength = Math.max(maxBitLength, other.maxBitLength);
+    bitLengthSum += other.bitLengthSum;
+    filterChecks += other.filterChecks;
+    filterZeroMod += other.filterZeroMod;
+    filterShortCircuits += other.filterShortCircuits;
+    filterNanos += other.filterNanos;
+    overflows += other.overflows;
+    blocks += other.blocks;
+    blockNanos += other.blockNanos;
+    batchNanos += other.batchNanos;
+    for (Map.Entry<String, long[]> engine : other.engines.entrySet()) {
+      recordEngine(engine.getKey(), engine.getValue()[0]);
+    }
+  }
+
+  /**
+   * Writes the metrics to a stream, to be read back by read.
+   * @param out: The stream to write to
+   * @throws IOException if the stream could not be written
+   */
+  synchronized void write(DataOutputStream out) throws IOException {
+    out.writeLong(matrices);
+    out.writeLong(totalNanos);
+    out.writeInt(maxBitLength);
+    out.writeLong(bitLengthSum);
+    out.writeLong(filterChecks);
+    out.writeLong(filterZeroMod);
+    out.writeLong(filterShortCircuits);
+    out.writeLong(filterNanos);
+    out.writeLong(overflows);
+    out.writeLong(blocks);
+    out.writeLong(blockNanos);
+    out.writeLong(batchNanos);
+    out.writeInt(engines.size());
+    for (Map.Entry<String, long[]> engine : engines.entrySet()) {
+      out.writeUTF(engine.getKey());
+      out.writeLong(engine.getValue()[0]);
+    }
+  }
+
+  /**
+   * Reads metrics written by write.
+   * @param in: The stream to read from
+   * @return: The metrics
+   * @throws IOException if the stream could not be read
+   */
+  static RunMetrics read(DataInputStream in) throws IOException {
+    RunMetrics metrics = new RunMetrics();
+    metrics.matrices = in.readLong();
+    metrics.totalNanos = in.readLong();
+    metrics.maxBitLength = in.readInt();
+    metrics.bitLengthSum = in.readLong();
+    metrics.filterChecks = in.readLong();
+    metrics.filterZeroMod = in.readLong();
+    metrics.filterShortCircuits = in.readLong();
+    metrics.filterNanos = in.readLong();
+    metrics.overflows = in.readLong();
+    metrics.blocks = in.readLong();
+    metrics.blockNanos = in.readLong();
+    metrics.batchNanos = in.readLong();
+    int engines = in.readInt();
+    for (int e = 0; e < engines; e++) {
+      metrics.recordEngine(in.readUTF(), in.readLong());
+    }
+    return metrics;
+  }
+
+  /**
+   * Prints a summary of the metrics collected so far.
+   * @param out: The stream to print the summary to
+   */
+  synchronized void report(PrintStream out) {
+    for (Map.Entry<String, long[]> engine : engines.entrySet()) {
+      out.println("Engine " + engine.getKey() + ": " + engine.getValue()[0]);
+    }
+    out.println("Determinants calculated: " + matrices);
+    out.println("Total time elapsed: " + totalNanos);
+    if (matrices > 0) {
+      out.println("Max entry bit length: " + maxBitLength);
+      out.println("Mean max entry bit length: " +
+              (double) bitLengthSum / matrices);
+    }
+    if (batchNanos > 0) {
+      out.println("Batches time elapsed: " + batchNanos);
+    }
+    if (blocks > 0) {
+      out.println("Diagonal blocks solved: " + blocks);
+      out.println("Diagonal blocks time elapsed: " + blockNanos);
+    }
+    if (overflows > 0) {
+      out.println("Recomputed with BigInteger after overflow: " +
+              overflows);
+    }
+    if (filterChecks > 0) {
+      out.println("Pre-filter checks: " + filterChecks);
+      out.println("Pre-filter zero modulo every prime: " + filterZeroMod);
+      out.println("Pre-filter short-circuits: " + filterShortCircuits +
+              " (" + 100.0 * filterShortCircuits / filterChecks + "%)");
+      out.println("Pre-filter time elapsed: " + filterNanos);
+    }
+  }
+}